@@ -0,0 +1,174 @@
+package com.house365.build;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.gradle.api.Action;
+import org.gradle.api.artifacts.Configuration;
+import org.gradle.api.artifacts.DependencyResolveDetails;
+import org.gradle.api.artifacts.ModuleVersionSelector;
+import org.gradle.api.artifacts.component.ModuleComponentIdentifier;
+import org.gradle.api.artifacts.result.ResolvedComponentResult;
+
+import com.android.annotations.NonNull;
+
+/**
+ * 使被shade的模块版本与运行时依赖图中冲突解决后的版本保持一致.
+ * <p>
+ * 在shade配置被解析前记录runtimeClasspath依赖图中各模块的版本(仅解析依赖图,不下载文件,
+ * 与Android插件对该配置的解析共享同一结果),解析shade配置时将依赖版本提升至两者中较高的版本,
+ * 效果等同于两者合并后的冲突解决,但不需要将runtimeClasspath的全部依赖复制到shade配置中再完整解析一次.
+ */
+public class RuntimeVersionAlignment implements Action<DependencyResolveDetails> {
+
+    private final Configuration runtimeClasspath;
+    /**
+     * 按从低到高排列的特殊修饰词,其余的修饰词(alpha、beta等)介于dev与rc之间,按字母顺序比较.
+     */
+    private static final List<String> SPECIAL_QUALIFIERS =
+            Arrays.asList("dev", "rc", "snapshot", "final", "ga", "release", "sp");
+    /**
+     * group -> module -> version
+     */
+    private Map<String, Map<String, String>> versions;
+
+    private RuntimeVersionAlignment(@NonNull Configuration runtimeClasspath) {
+        this.runtimeClasspath = runtimeClasspath;
+    }
+
+    /**
+     * @param configuration     需要对齐版本的配置
+     * @param runtimeClasspath 变体的运行时依赖配置
+     */
+    public static void apply(@NonNull Configuration configuration, @NonNull Configuration runtimeClasspath) {
+        RuntimeVersionAlignment alignment = new RuntimeVersionAlignment(runtimeClasspath);
+        configuration.getIncoming().beforeResolve(dependencies -> alignment.snapshot());
+        configuration.getResolutionStrategy().eachDependency(alignment);
+    }
+
+    private synchronized void snapshot() {
+        if (versions != null) {
+            return;
+        }
+        versions = new HashMap<>();
+        for (ResolvedComponentResult component : runtimeClasspath.getIncoming().getResolutionResult().getAllComponents()) {
+            if (component.getId() instanceof ModuleComponentIdentifier) {
+                ModuleComponentIdentifier id = (ModuleComponentIdentifier) component.getId();
+                versions.computeIfAbsent(id.getGroup(), group -> new HashMap<>())
+                        .put(id.getModule(), id.getVersion());
+            }
+        }
+    }
+
+    @Override
+    public void execute(DependencyResolveDetails details) {
+        ModuleVersionSelector requested = details.getRequested();
+        Map<String, String> modules = versions != null ? versions.get(requested.getGroup()) : null;
+        String runtimeVersion = modules != null ? modules.get(requested.getName()) : null;
+        if (runtimeVersion == null || runtimeVersion.equals(requested.getVersion())) {
+            return;
+        }
+        if (requested.getVersion() == null || compareVersions(runtimeVersion, requested.getVersion()) > 0) {
+            details.useVersion(runtimeVersion);
+        }
+    }
+
+    /**
+     * 参照Gradle冲突解决的版本比较规则:版本以.-_+及数字与字母的边界分段,数字段按数值比较且大于非数字段,
+     * 非数字段中dev最低,rc、snapshot、final、ga、release、sp依次升高,其余按字母顺序介于dev与rc之间.
+     * 其余各段相同时,多出的段为数字时较长的版本更高,否则较短的版本更高(1.0 > 1.0-beta).
+     *
+     * @param v1
+     * @param v2
+     * @return
+     */
+    static int compareVersions(@NonNull String v1, @NonNull String v2) {
+        List<String> parts1 = split(v1);
+        List<String> parts2 = split(v2);
+        int count = Math.min(parts1.size(), parts2.size());
+        for (int i = 0; i < count; i++) {
+            int result = compareParts(parts1.get(i), parts2.get(i));
+            if (result != 0) {
+                return result;
+            }
+        }
+        if (parts1.size() == parts2.size()) {
+            return 0;
+        }
+        if (parts1.size() > parts2.size()) {
+            return isNumber(parts1.get(count)) ? 1 : -1;
+        }
+        return isNumber(parts2.get(count)) ? -1 : 1;
+    }
+
+    private static int compareParts(@NonNull String part1, @NonNull String part2) {
+        boolean number1 = isNumber(part1);
+        boolean number2 = isNumber(part2);
+        if (number1 && number2) {
+            String n1 = stripLeadingZeros(part1);
+            String n2 = stripLeadingZeros(part2);
+            if (n1.length() != n2.length()) {
+                return Integer.compare(n1.length(), n2.length());
+            }
+            return Integer.signum(n1.compareTo(n2));
+        }
+        if (number1 != number2) {
+            return number1 ? 1 : -1;
+        }
+        int rank1 = rank(part1);
+        int rank2 = rank(part2);
+        if (rank1 != rank2) {
+            return Integer.compare(rank1, rank2);
+        }
+        return rank1 == 0 ? Integer.signum(part1.compareTo(part2)) : 0;
+    }
+
+    /**
+     * @return dev为-1, 其他普通修饰词为0, rc及之后的修饰词依次为1、2...
+     */
+    private static int rank(@NonNull String part) {
+        int index = SPECIAL_QUALIFIERS.indexOf(part.toLowerCase());
+        return index < 0 ? 0 : index == 0 ? -1 : index;
+    }
+
+    @NonNull
+    private static List<String> split(@NonNull String version) {
+        List<String> parts = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i <= version.length(); i++) {
+            boolean end = i == version.length();
+            char c = end ? 0 : version.charAt(i);
+            if (end || c == '.' || c == '-' || c == '_' || c == '+') {
+                if (i > start) {
+                    parts.add(version.substring(start, i));
+                }
+                start = i + 1;
+            } else if (i > start && Character.isDigit(c) != Character.isDigit(version.charAt(i - 1))) {
+                parts.add(version.substring(start, i));
+                start = i;
+            }
+        }
+        return parts;
+    }
+
+    private static boolean isNumber(@NonNull String part) {
+        for (int i = 0; i < part.length(); i++) {
+            if (!Character.isDigit(part.charAt(i))) {
+                return false;
+            }
+        }
+        return !part.isEmpty();
+    }
+
+    @NonNull
+    private static String stripLeadingZeros(@NonNull String number) {
+        int i = 0;
+        while (i < number.length() - 1 && number.charAt(i) == '0') {
+            i++;
+        }
+        return number.substring(i);
+    }
+}
@@ -0,0 +1,90 @@
+package com.house365.build;
+
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.gradle.api.Project;
+import org.gradle.api.artifacts.ArtifactCollection;
+import org.gradle.api.artifacts.Configuration;
+import org.gradle.api.artifacts.ConfigurationContainer;
+import org.gradle.api.artifacts.component.ComponentIdentifier;
+import org.gradle.api.artifacts.result.ResolutionResult;
+import org.gradle.api.artifacts.result.ResolvedArtifactResult;
+import org.gradle.api.artifacts.result.ResolvedComponentResult;
+
+import com.android.annotations.NonNull;
+import com.android.build.gradle.internal.publishing.AndroidArtifacts.ArtifactType;
+import com.android.build.gradle.internal.scope.VariantScope;
+
+import static com.android.build.gradle.internal.publishing.AndroidArtifacts.ArtifactType.MANIFEST;
+
+/**
+ * 单个变体的shade依赖索引.
+ * <p>
+ * 被shade的组件集合在<variant>RuntimeShadeClasspath解析前由<variant>ShadeClasspath解析一次:
+ * 包含AndroidManifest的组件为AAR,依赖图中其余的组件为普通jar.componentFilter中只做查找,不会在一个配置的解析过程中解析另一个配置.
+ * 各类型的ArtifactCollection只创建一次,Gradle在首次访问后会缓存其解析结果,
+ * 因此同一次构建中配置阶段、Transform及各任务查询到的都是同一份结果.
+ * 所需的Configuration在创建时获取,之后不再访问Project.
+ */
+public class ShadeArtifactIndex {
+
+    private final VariantScope variantScope;
+    private final Configuration runtimeShadeClasspath;
+    private final ShadeComponentSpec componentSpec = new ShadeComponentSpec();
+    private final ShadeComponentSpec jarComponentSpec = new ShadeComponentSpec();
+    private boolean resolved;
+    private final Map<ArtifactType, ArtifactCollection> collections = new EnumMap<>(ArtifactType.class);
+
+    public ShadeArtifactIndex(@NonNull Project project, @NonNull VariantScope variantScope) {
+        this.variantScope = variantScope;
+        ConfigurationContainer configurations = project.getConfigurations();
+        Configuration shadeClasspath = configurations.maybeCreate(variantScope.getFullVariantName() + "ShadeClasspath");
+        this.runtimeShadeClasspath = configurations.maybeCreate(variantScope.getFullVariantName() + "RuntimeShadeClasspath");
+        ArtifactCollection manifests = ShadeTaskManager.getArtifactCollection(shadeClasspath, variantScope, MANIFEST);
+        runtimeShadeClasspath.getIncoming().beforeResolve(dependencies -> resolveComponents(shadeClasspath, manifests));
+    }
+
+    private synchronized void resolveComponents(@NonNull Configuration shadeClasspath,
+                                                @NonNull ArtifactCollection manifests) {
+        if (resolved) {
+            return;
+        }
+        ResolutionResult result = shadeClasspath.getIncoming().getResolutionResult();
+        Set<ComponentIdentifier> aars = new HashSet<>();
+        for (ResolvedArtifactResult artifact : manifests.getArtifacts()) {
+            aars.add(artifact.getId().getComponentIdentifier());
+        }
+        Set<ComponentIdentifier> jars = new HashSet<>();
+        for (ResolvedComponentResult component : result.getAllComponents()) {
+            if (!aars.contains(component.getId()) && !component.getId().equals(result.getRoot().getId())) {
+                jars.add(component.getId());
+            }
+        }
+        componentSpec.setComponents(aars);
+        jarComponentSpec.setComponents(jars);
+        resolved = true;
+    }
+
+    /**
+     * @return 匹配被shade的普通jar(无AndroidManifest的组件),在<variant>RuntimeShadeClasspath解析前确定.
+     */
+    @NonNull
+    public ShadeComponentSpec getJarComponentSpec() {
+        return jarComponentSpec;
+    }
+
+    /**
+     * 获取被shade的组件在<variant>RuntimeShadeClasspath中指定类型的依赖,不会立即解析.
+     *
+     * @param artifactType
+     * @return
+     */
+    @NonNull
+    public synchronized ArtifactCollection getArtifactCollection(@NonNull ArtifactType artifactType) {
+        return collections.computeIfAbsent(artifactType,
+                type -> ShadeTaskManager.getResolvedArtifactResults(variantScope, runtimeShadeClasspath, componentSpec, type));
+    }
+}
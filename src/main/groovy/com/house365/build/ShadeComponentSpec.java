@@ -0,0 +1,64 @@
+package com.house365.build;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.gradle.api.artifacts.component.ComponentIdentifier;
+import org.gradle.api.artifacts.component.ModuleComponentIdentifier;
+import org.gradle.api.specs.CompositeSpec;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+
+/**
+ * 匹配被shade的组件,用于artifactView的componentFilter.
+ * <p>
+ * 外部模块忽略版本,按group及module匹配,以便匹配到冲突解决后的版本;本地工程等其他组件按标识匹配.
+ * 组件集合需在被过滤的配置解析前通过{@link #setComponents(Set)}设置,匹配时不会解析任何配置,
+ * 每次匹配只有哈希查找,不会创建新的对象.
+ */
+public class ShadeComponentSpec extends CompositeSpec<ComponentIdentifier> {
+
+    @Nullable
+    private volatile Index index;
+
+    public void setComponents(@NonNull Set<ComponentIdentifier> components) {
+        this.index = new Index(components);
+    }
+
+    @Override
+    public boolean isSatisfiedBy(ComponentIdentifier element) {
+        Index index = this.index;
+        if (index == null) {
+            throw new IllegalStateException("Shaded components have not been resolved yet.");
+        }
+        if (element instanceof ModuleComponentIdentifier) {
+            ModuleComponentIdentifier identifier = (ModuleComponentIdentifier) element;
+            Set<String> modules = index.modules.get(identifier.getGroup());
+            return modules != null && modules.contains(identifier.getModule());
+        }
+        return index.components.contains(element);
+    }
+
+    private static class Index {
+        /**
+         * group -> module
+         */
+        final Map<String, Set<String>> modules = new HashMap<>();
+        final Set<ComponentIdentifier> components = new HashSet<>();
+
+        Index(Set<ComponentIdentifier> identifiers) {
+            for (ComponentIdentifier identifier : identifiers) {
+                if (identifier instanceof ModuleComponentIdentifier) {
+                    ModuleComponentIdentifier module = (ModuleComponentIdentifier) identifier;
+                    modules.computeIfAbsent(module.getGroup(), group -> new HashSet<>())
+                            .add(module.getModule());
+                } else {
+                    components.add(identifier);
+                }
+            }
+        }
+    }
+}
@@ -1,10 +1,14 @@
 package com.house365.build;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Set;
 
 import org.apache.commons.lang3.reflect.FieldUtils;
@@ -21,6 +25,7 @@ import org.gradle.api.logging.Logging;
 import org.gradle.api.specs.Spec;
 import org.gradle.api.tasks.SourceSet;
 import org.gradle.internal.reflect.Instantiator;
+import org.gradle.workers.IsolationMode;
 
 import com.android.annotations.NonNull;
 import com.android.build.gradle.BaseExtension;
@@ -52,7 +57,22 @@ public class ShadeExtension {
     /**
      * 记录Shade
      */
-    private ConfigurationCache configurationCache = new ConfigurationCache();
+    private final ConfigurationCache configurationCache;
+
+    /**
+     * 合并jar时使用的线程数,小于等于1时串行合并.
+     */
+    private int mergeThreads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * 合并被shade的依赖时Worker的隔离方式,不同变体的合并任务可以同时执行.
+     */
+    private IsolationMode workerIsolation = IsolationMode.NONE;
+
+    /**
+     * 隔离方式为{@link IsolationMode#PROCESS}时Worker进程的最大堆内存,例如"1g",为null时使用Gradle的默认值.
+     */
+    private String workerMaxHeapSize;
 
     public ShadeExtension(
             @NonNull final ProjectInternal project,
@@ -71,6 +91,7 @@ public class ShadeExtension {
         this.productFlavors = android.getProductFlavors();
         this.signingConfigs = android.getSigningConfigs();
         this.isLibrary = android instanceof LibraryExtension ? true : false;
+        this.configurationCache = new ConfigurationCache(buildTypes, productFlavors);
 
         logger = Logging.getLogger(this.getClass());
 
@@ -122,61 +143,173 @@ public class ShadeExtension {
         }
     }
 
+    public int getMergeThreads() {
+        return mergeThreads;
+    }
+
+    public void setMergeThreads(int mergeThreads) {
+        this.mergeThreads = mergeThreads;
+    }
+
+    public IsolationMode getWorkerIsolation() {
+        return workerIsolation;
+    }
+
+    public void setWorkerIsolation(IsolationMode workerIsolation) {
+        this.workerIsolation = workerIsolation;
+    }
+
+    public String getWorkerMaxHeapSize() {
+        return workerMaxHeapSize;
+    }
+
+    public void setWorkerMaxHeapSize(String workerMaxHeapSize) {
+        this.workerMaxHeapSize = workerMaxHeapSize;
+    }
+
     public HashSet<Configuration> getConfigurationAndExtends(@NonNull String configName) {
         return configurationCache.getConfigAndExtends(configName);
     }
 
     /**
      * 缓存已添加的Configuration以及继承关系.
+     * <p>
+     * 每个shade配置对应一个SourceSet,其名称由若干flavor及buildType名称组成,例如flavor1Flavor2Debug,
+     * main对应空集合.配置A继承配置B当且仅当B的组成部分是A的子集,与Android插件合并SourceSet的规则一致.
+     * 配置在添加时只做记录,在首次查询时才拆分名称(此时flavor及buildType已全部配置完成),
+     * 查询时枚举组成部分的子集进行查找,不需要遍历所有配置.
      */
     protected static class ConfigurationCache {
 
-        private LinkedHashMap<String, Configuration> configurations = new LinkedHashMap<String, Configuration>();
+        private final Collection<BuildType> buildTypes;
+        private final Collection<ProductFlavor> productFlavors;
+
+        private final LinkedHashMap<String, Configuration> configurations = new LinkedHashMap<String, Configuration>();
 
-        private LinkedHashMap<String, HashSet<String>> configExtendsMap = new LinkedHashMap<String, HashSet<String>>();
+        /**
+         * 已添加但尚未拆分名称的配置.
+         */
+        private final List<String> pending = new ArrayList<String>();
 
-        private boolean isComputeExtends = false;
+        /**
+         * 配置名称 -> 组成部分
+         */
+        private final HashMap<String, Set<String>> configParts = new HashMap<String, Set<String>>();
 
-        public ConfigurationCache() {
+        /**
+         * 组成部分 -> 配置名称
+         */
+        private final HashMap<Set<String>, String> partsConfig = new HashMap<Set<String>, String>();
+
+        public ConfigurationCache(Collection<BuildType> buildTypes, Collection<ProductFlavor> productFlavors) {
+            this.buildTypes = buildTypes;
+            this.productFlavors = productFlavors;
         }
 
         public void addConfiguration(Configuration configuration) {
-            isComputeExtends = false;
-            configurations.put(configuration.getName(), configuration);
+            if (configurations.put(configuration.getName(), configuration) == null) {
+                pending.add(configuration.getName());
+            }
         }
 
-        private void computeExtends() {
-            if (isComputeExtends)
+        private void indexPending() {
+            if (pending.isEmpty()) {
                 return;
-            Set<String> keySet = configurations.keySet();
-            for (String parentConfig : keySet) {
-                for (String config : keySet) {
-                    if (!parentConfig.equals(config) && config.toLowerCase().contains(parentConfig.toLowerCase())) {
-                        HashSet<String> configExtends = configExtendsMap.get(config);
-                        if (configExtends == null) {
-                            configExtends = new HashSet<String>(keySet.size() / 2);
-                            configExtendsMap.put(config, configExtends);
-                        }
-                        configExtends.add(parentConfig);
+            }
+            List<String> names = getDimensionNames();
+            for (String configName : pending) {
+                Set<String> parts = split(configName, names);
+                configParts.put(configName, parts);
+                partsConfig.put(parts, configName);
+            }
+            pending.clear();
+        }
+
+        /**
+         * @return 所有flavor及buildType的名称,较长的名称在前,优先匹配.
+         */
+        private List<String> getDimensionNames() {
+            List<String> names = new ArrayList<String>(buildTypes.size() + productFlavors.size());
+            for (BuildType buildType : buildTypes) {
+                names.add(buildType.getName());
+            }
+            for (ProductFlavor productFlavor : productFlavors) {
+                names.add(productFlavor.getName());
+            }
+            names.sort((a, b) -> b.length() - a.length());
+            return names;
+        }
+
+        /**
+         * 将shade配置名称拆分为flavor及buildType名称的集合,无法拆分时将整个SourceSet名称作为唯一的组成部分.
+         */
+        private static Set<String> split(String configName, List<String> names) {
+            String sourceSetName = getSourceSetName(configName);
+            if (sourceSetName.isEmpty()) {
+                return Collections.emptySet();
+            }
+            Set<String> parts = new HashSet<String>();
+            if (!split(sourceSetName, 0, names, parts)) {
+                parts = Collections.singleton(sourceSetName.toLowerCase());
+            }
+            return parts;
+        }
+
+        private static boolean split(String sourceSetName, int start, List<String> names, Set<String> parts) {
+            if (start == sourceSetName.length()) {
+                return true;
+            }
+            for (String name : names) {
+                int length = name.length();
+                if (length > 0 && start + length <= sourceSetName.length()
+                        && Character.toLowerCase(sourceSetName.charAt(start)) == Character.toLowerCase(name.charAt(0))
+                        && sourceSetName.regionMatches(start + 1, name, 1, length - 1)) {
+                    String part = name.toLowerCase();
+                    boolean added = parts.add(part);
+                    if (split(sourceSetName, start + length, names, parts)) {
+                        return true;
+                    }
+                    if (added) {
+                        parts.remove(part);
                     }
                 }
             }
-            isComputeExtends = true;
+            return false;
+        }
+
+        /**
+         * @see #getShadeConfigurationName(String)
+         */
+        private static String getSourceSetName(String configName) {
+            if (configName.equals(getShadeConfigurationName(SourceSet.MAIN_SOURCE_SET_NAME))) {
+                return "";
+            }
+            return configName.substring(0, configName.length() - "Shade".length());
         }
 
         public HashSet<Configuration> getConfigAndExtends(@NonNull String configName) {
-            computeExtends();
-            HashSet<Configuration> hashSet = new HashSet<Configuration>(configurations.size() / 2, 1);
-            hashSet.add(configurations.get(configName));
-            HashSet<String> configNameSet = configExtendsMap.get(configName);
-            if (configNameSet == null) {
-                return hashSet;
-            } else {
-                for (String key : configNameSet) {
-                    hashSet.add(configurations.get(key));
+            indexPending();
+            Set<String> parts = configParts.get(configName);
+            if (parts == null) {
+                parts = split(configName, getDimensionNames());
+            }
+            HashSet<Configuration> hashSet = new HashSet<Configuration>();
+            List<String> partList = new ArrayList<String>(parts);
+            // 枚举所有子集,包括空集(main)及其自身.
+            int count = 1 << partList.size();
+            for (int mask = 0; mask < count; mask++) {
+                Set<String> subset = new HashSet<String>(partList.size() * 2);
+                for (int i = 0; i < partList.size(); i++) {
+                    if ((mask & (1 << i)) != 0) {
+                        subset.add(partList.get(i));
+                    }
+                }
+                String name = partsConfig.get(subset);
+                if (name != null) {
+                    hashSet.add(configurations.get(name));
                 }
-                return hashSet;
             }
+            return hashSet;
         }
     }
 }
@@ -13,7 +13,6 @@ import org.gradle.tooling.provider.model.ToolingModelBuilderRegistry;
 import com.android.build.gradle.AppPlugin;
 import com.android.build.gradle.BaseExtension;
 import com.android.build.gradle.BasePlugin;
-import com.android.build.gradle.LibraryExtension;
 import com.android.build.gradle.LibraryPlugin;
 import com.android.build.gradle.internal.BadPluginException;
 import com.android.build.gradle.internal.scope.VariantScope;
@@ -34,7 +33,6 @@ import com.house365.build.transform.ShadeAarClassTransform;
 public class ShadePlugin implements Plugin<Project> {
 
     public static final String Android_Gradle_Version = "3.1.";
-    public static ShadePlugin instance;
 
     private final Instantiator instantiator;
     private final ToolingModelBuilderRegistry registry;
@@ -52,7 +50,6 @@ public class ShadePlugin implements Plugin<Project> {
         this.instantiator = instantiator;
         this.registry = registry;
         this.logger = Logging.getLogger(this.getClass());
-        instance = this;
     }
 
     /**
@@ -117,11 +114,11 @@ public class ShadePlugin implements Plugin<Project> {
      * 创建相关任务.
      */
     private void createTasks() throws IllegalAccessException {
-        taskManager = TaskHelper.createShadeTaskManager(basePlugin);
+        taskManager = TaskHelper.createShadeTaskManager(basePlugin, extension);
 
         project.getTasks().create("shadeSimple", ShadeTask.class);
 
-        shadeAarClassTransform = new ShadeAarClassTransform(project, (LibraryExtension) baseExtension, taskManager);
+        shadeAarClassTransform = new ShadeAarClassTransform(taskManager);
         baseExtension.registerTransform(shadeAarClassTransform);
 
         project.afterEvaluate(project -> {
@@ -167,6 +164,8 @@ public class ShadePlugin implements Plugin<Project> {
 //        }
 
         for (VariantScope variantScope : basePlugin.getVariantManager().getVariantScopes()) {
+            // 测试变体同样会执行ShadeAarClassTransform.
+            taskManager.registerVariant(variantScope);
             BaseVariantData variantData = variantScope.getVariantData();
             if (variantData instanceof LibraryVariantData) {
                 ThreadRecorder.get().record(
@@ -5,7 +5,9 @@ import java.lang.reflect.InvocationTargetException;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
@@ -21,22 +23,19 @@ import org.gradle.api.Task;
 import org.gradle.api.artifacts.ArtifactCollection;
 import org.gradle.api.artifacts.Configuration;
 import org.gradle.api.artifacts.ConfigurationContainer;
-import org.gradle.api.artifacts.component.ComponentArtifactIdentifier;
 import org.gradle.api.artifacts.component.ComponentIdentifier;
-import org.gradle.api.artifacts.component.ModuleComponentIdentifier;
-import org.gradle.api.artifacts.result.ResolvedArtifactResult;
 import org.gradle.api.attributes.AttributeContainer;
 import org.gradle.api.attributes.Usage;
+import org.gradle.api.file.FileCollection;
 import org.gradle.api.model.ObjectFactory;
 import org.gradle.api.specs.CompositeSpec;
-import org.gradle.internal.component.local.model.PublishArtifactLocalArtifactMetadata;
 import org.gradle.tooling.provider.model.ToolingModelBuilderRegistry;
 import org.jetbrains.annotations.NotNull;
 
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
 import com.android.annotations.VisibleForTesting;
 import com.android.build.api.attributes.BuildTypeAttr;
-import com.android.build.api.transform.Context;
 import com.android.build.api.transform.QualifiedContent;
 import com.android.build.api.transform.Transform;
 import com.android.build.api.transform.TransformInvocation;
@@ -65,10 +64,16 @@ import com.android.builder.profile.Recorder;
 import com.android.manifmerger.ManifestMerger2;
 import com.android.utils.FileUtils;
 import com.google.common.base.CaseFormat;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
 import com.google.common.collect.ImmutableList;
 import com.house365.build.gradle.tasks.MergeManifests;
+import com.house365.build.gradle.tasks.ShadeClassesTask;
 import com.house365.build.gradle.tasks.ShadeJniLibsAction;
+import com.house365.build.gradle.tasks.ShadeSharedOutputs;
 import com.house365.build.transform.LibraryAarJarsTransform;
+import com.house365.build.transform.ShadeAarClassTransform;
+import com.house365.build.util.PackagingActionCache;
 
 import static com.android.build.gradle.internal.publishing.AndroidArtifacts.ArtifactType.AIDL;
 import static com.android.build.gradle.internal.publishing.AndroidArtifacts.ArtifactType.ANDROID_RES;
@@ -86,9 +91,23 @@ public class ShadeTaskManager extends TaskManager {
 
     private static final Logger logger = Logger.getLogger("ShadeTaskManager");
     private final BasePlugin basePlugin;
+    private final ShadeExtension shadeExtension;
+    private final Map<String, ShadeArtifactIndex> artifactIndexes = new ConcurrentHashMap<>();
+    private final Map<String, ShadeVariant> variants = new ConcurrentHashMap<>();
+    /**
+     * 所有变体共享packagingOptions的处理结果,首次使用时创建,此时DSL已配置完成.
+     */
+    private final Supplier<PackagingActionCache> packagingActions =
+            Suppliers.memoize(() -> new PackagingActionCache(extension.getPackagingOptions()));
+    /**
+     * 各变体共享的合并结果,创建第一个ShadeClassesTask时创建,此时buildDir已配置完成.
+     */
+    @Nullable
+    private ShadeSharedOutputs sharedOutputs;
 
     public ShadeTaskManager(
             BasePlugin basePlugin,
+            ShadeExtension shadeExtension,
             GlobalScope globalScope,
             Project project,
             ProjectOptions projectOptions,
@@ -100,6 +119,7 @@ public class ShadeTaskManager extends TaskManager {
             Recorder recorder) {
         super(globalScope, project, projectOptions, androidBuilder, dataBindingBuilder, extension, sdkHandler, toolingRegistry, recorder);
         this.basePlugin = basePlugin;
+        this.shadeExtension = shadeExtension;
     }
 
 
@@ -120,10 +140,11 @@ public class ShadeTaskManager extends TaskManager {
         Configuration shadeClasspath = configurations.maybeCreate(variantName + "ShadeClasspath");
         applyVariantAttributes(variantScope, shadeClasspath);
 
+        // 仅包含shade依赖,版本按运行时依赖图对齐.
         Configuration runtimeClasspath = configurations.maybeCreate(variantName + "RuntimeClasspath");
-        runtimeShadeClasspath.getDependencies().addAll(runtimeClasspath.getAllDependencies());
+        RuntimeVersionAlignment.apply(runtimeShadeClasspath, runtimeClasspath);
 
-        HashSet<Configuration> hashSet = ShadePlugin.instance.extension.getConfigurationAndExtends(variantName + "Shade");
+        HashSet<Configuration> hashSet = shadeExtension.getConfigurationAndExtends(variantName + "Shade");
 
         if (hashSet != null) {
             for (Configuration configuration : hashSet) {
@@ -132,22 +153,10 @@ public class ShadeTaskManager extends TaskManager {
             }
         }
 
-        Set<ResolvedArtifactResult> artifacts = getArtifactCollection(shadeClasspath, variantScope, CLASSES).getArtifacts();
-
-        Set<ResolvedArtifactResult> artifacts1 = getArtifactCollection(shadeClasspath, variantScope, MANIFEST).getArtifacts();
-        Set<ComponentIdentifier> collect = artifacts1.stream().map(t -> t.getId().getComponentIdentifier()).collect(Collectors.toSet());
-
-        Set<ResolvedArtifactResult> jarArtifacts = artifacts.stream().filter(t ->
-                !collect.contains(t.getId().getComponentIdentifier())
-        ).collect(Collectors.toSet());
-
-        Set<ResolvedArtifactResult> classArtifacts = getResolvedArtifactResults(variantScope, runtimeShadeClasspath, jarArtifacts, CLASSES).getArtifacts();
-
-        Set<File> jarFiles = new HashSet<>();
-
-        for (ResolvedArtifactResult runtimeShadeArtifact : classArtifacts) {
-            jarFiles.add(runtimeShadeArtifact.getFile());
-        }
+        // 普通jar依赖(无AndroidManifest的组件)在任务执行前才会解析,配置阶段不解析任何shade依赖.
+        ShadeArtifactIndex artifactIndex = getShadeArtifactIndex(variantScope);
+        FileCollection jarFiles = getResolvedArtifactResults(variantScope, runtimeShadeClasspath,
+                artifactIndex.getJarComponentSpec(), CLASSES).getArtifactFiles();
 
         Configuration shadeJarClasspath = configurations.maybeCreate(variantName + "ShadeJarClasspath");
         project.getDependencies().add(shadeJarClasspath.getName(), project.files(jarFiles));
@@ -171,9 +180,11 @@ public class ShadeTaskManager extends TaskManager {
         }
 
         ArtifactCollection aidlArtifacts = getShadeArtifactCollection(variantScope, AIDL);
-        if (aidlArtifacts.getArtifacts().size() > 0) {
-            throw new GradleException("The current version of the shade plug-in does not support AIDL merge processing.");
-        }
+        project.getTasks().getByName(variantScope.getTaskName("pre", "Build")).doFirst(task -> {
+            if (aidlArtifacts.getArtifacts().size() > 0) {
+                throw new GradleException("The current version of the shade plug-in does not support AIDL merge processing.");
+            }
+        });
 
         configurations.getByName(variantName + "UnitTestRuntimeClasspath").extendsFrom(shadeJarClasspath);
 
@@ -274,14 +285,82 @@ public class ShadeTaskManager extends TaskManager {
 
     }
 
-    public VariantScope getCurrentVariant(TransformInvocation invocation) {
-        Context context = invocation.getContext();
-        for (VariantScope variantScope : basePlugin.getVariantManager().getVariantScopes()) {
-            if (variantScope.getFullVariantName().equals(context.getVariantName())) {
-                return variantScope;
+    /**
+     * 获取变体的shade依赖索引,每个变体只创建一次.
+     *
+     * @param variantScope
+     * @return
+     */
+    @NonNull
+    public ShadeArtifactIndex getShadeArtifactIndex(@NonNull VariantScope variantScope) {
+        return artifactIndexes.computeIfAbsent(variantScope.getFullVariantName(),
+                name -> new ShadeArtifactIndex(project, variantScope));
+    }
+
+    /**
+     * 注册变体,Transform执行时通过{@link #getCurrentVariant(TransformInvocation)}获取.
+     *
+     * @param variantScope
+     */
+    public void registerVariant(@NonNull VariantScope variantScope) {
+        FileCollection shadeJars = getArtifactCollection(
+                project.getConfigurations().maybeCreate(variantScope.getFullVariantName() + "ShadeJarClasspath"),
+                variantScope, CLASSES).getArtifactFiles();
+        ShadeVariant variant = new ShadeVariant(
+                getShadeArtifactIndex(variantScope), shadeJars,
+                variantScope.getVariantConfiguration().getMainManifest(), packagingActions,
+                shadeExtension.getMergeThreads());
+        variants.put(variantScope.getFullVariantName(), variant);
+        createShadeClassesTask(variantScope, variant);
+    }
+
+    /**
+     * 创建可缓存的合并依赖class的任务,并使ShadeAarClassTransform依赖其输出.
+     *
+     * @param variantScope
+     * @param variant
+     */
+    private void createShadeClassesTask(@NonNull VariantScope variantScope, @NonNull ShadeVariant variant) {
+        Task transformTask = null;
+        try {
+            List<Transform> transforms = (List<Transform>) FieldUtils.readField(variantScope.getTransformManager(), "transforms", true);
+            for (Transform transform : transforms) {
+                if (transform instanceof ShadeAarClassTransform) {
+                    transformTask = project.getTasks().findByName(variantScope.getTaskName(getTaskNamePrefix(transform)));
+                }
             }
+        } catch (IllegalAccessException e) {
+            throw new GradleException(e.getMessage());
+        }
+        if (transformTask == null) {
+            return;
         }
-        return null;
+        ShadeClassesTask classesTask = taskFactory.create(new ShadeClassesTask.ConfigAction(variantScope, variant,
+                getSharedOutputs(), shadeExtension.getWorkerIsolation(), shadeExtension.getWorkerMaxHeapSize()));
+        transformTask.dependsOn(classesTask);
+        transformTask.getInputs().files(classesTask.getOutputs().getFiles());
+    }
+
+    @NonNull
+    private synchronized ShadeSharedOutputs getSharedOutputs() {
+        if (sharedOutputs == null) {
+            ShadeSharedOutputs outputs = new ShadeSharedOutputs(
+                    FileUtils.join(globalScope.getIntermediatesDir(), "shade", "shared"));
+            // 构建结束时删除本次未使用的共享合并结果,避免随输入的变化无限增长.
+            project.getGradle().buildFinished(result -> outputs.prune());
+            sharedOutputs = outputs;
+        }
+        return sharedOutputs;
+    }
+
+    @NonNull
+    public ShadeVariant getCurrentVariant(TransformInvocation invocation) {
+        String variantName = invocation.getContext().getVariantName();
+        ShadeVariant variant = variants.get(variantName);
+        if (variant == null) {
+            throw new GradleException("Shade variant " + variantName + " has not been registered.");
+        }
+        return variant;
     }
 
     /**
@@ -374,7 +453,8 @@ public class ShadeTaskManager extends TaskManager {
         MergeManifests mergeManifestsAndroidTask =
                 taskFactory.create(
                         new MergeManifests.ConfigAction(
-                                variantScope, optionalFeatures.build(), reportFile));
+                                variantScope, getShadeArtifactCollection(variantScope, MANIFEST),
+                                optionalFeatures.build(), reportFile));
 
         final String name = mergeManifestsAndroidTask.getName();
 
@@ -414,15 +494,7 @@ public class ShadeTaskManager extends TaskManager {
 */
         TransformManager transformManager = variantScope.getTransformManager();
 
-        ArtifactCollection aidlArtifacts = getShadeArtifactCollection(variantScope, JNI);
-        Set<ResolvedArtifactResult> artifacts = aidlArtifacts.getArtifacts();
-        Set<PublishArtifactLocalArtifactMetadata> set = new HashSet<>();
-        for (ResolvedArtifactResult artifact : artifacts) {
-            ComponentArtifactIdentifier id = artifact.getId();
-            if (id instanceof PublishArtifactLocalArtifactMetadata) {
-                set.add((PublishArtifactLocalArtifactMetadata) artifact.getId());
-            }
-        }
+        ArtifactCollection jniArtifacts = getShadeArtifactCollection(variantScope, JNI);
 
         try {
             List<Transform> transforms = (List<Transform>) FieldUtils.readField(transformManager, "transforms", true);
@@ -430,14 +502,12 @@ public class ShadeTaskManager extends TaskManager {
                 if (transform instanceof LibraryJniLibsTransform) {
                     String taskName = variantScope.getTaskName(getTaskNamePrefix(transform));
                     File jniLibsFolder = (File) FieldUtils.readField(transform, "jniLibsFolder", true);
-                    ShadeJniLibsAction action = new ShadeJniLibsAction(this, variantScope, jniLibsFolder);
+                    ShadeJniLibsAction action = new ShadeJniLibsAction(jniArtifacts.getArtifactFiles(),
+                            variantScope.getVariantConfiguration().getSupportedAbis(), jniLibsFolder);
                     Task task = project.getTasks().getByName(taskName);
                     task.doLast(action);
-                    if (!set.isEmpty()) {
-                        for (PublishArtifactLocalArtifactMetadata id : set) {
-                            task.dependsOn(id.getBuildDependencies());
-                        }
-                    }
+                    // 依赖本地工程的JNI时需要先构建该工程,通过FileCollection延迟计算.
+                    task.dependsOn(jniArtifacts.getArtifactFiles());
                 }
             }
         } catch (IllegalAccessException e) {
@@ -448,70 +518,28 @@ public class ShadeTaskManager extends TaskManager {
     public ArtifactCollection getShadeArtifactCollection(
             VariantScope variantScope,
             ArtifactType artifactType) {
-        return getShadeArtifactCollection(project, variantScope, artifactType);
+        return getShadeArtifactIndex(variantScope).getArtifactCollection(artifactType);
     }
 
 
     /**
-     * 参照resolvedArtifactResults,获取configuration中实际使用的依赖集合.
+     * 参照components,获取configuration中实际使用的依赖集合.
+     * <p>
+     * components仅在configuration被解析时才会计算,因此返回的ArtifactCollection在配置阶段不会触发任何依赖解析.
      *
      * @param variantScope
      * @param configuration
-     * @param resolvedArtifactResults
+     * @param components
      * @param artifactType
      * @return
      */
     @NotNull
-    private static ArtifactCollection getResolvedArtifactResults(
+    static ArtifactCollection getResolvedArtifactResults(
             VariantScope variantScope,
             Configuration configuration,
-            Set<ResolvedArtifactResult> resolvedArtifactResults,
+            ShadeComponentSpec components,
             ArtifactType artifactType) {
-        Set<ComponentIdentifier> componentIdentifiers = new HashSet<>(resolvedArtifactResults.size(), 1);
-        Set<String> moduleWithoutVersion = new HashSet<>(resolvedArtifactResults.size(), 1);
-        for (ResolvedArtifactResult artifact : resolvedArtifactResults) {
-            ComponentIdentifier identifier = artifact.getId().getComponentIdentifier();
-            if (identifier instanceof ModuleComponentIdentifier) {
-                String group = ((ModuleComponentIdentifier) identifier).getGroup();
-                String module = ((ModuleComponentIdentifier) identifier).getModule();
-                moduleWithoutVersion.add(group + ":" + module);
-            } else {
-                componentIdentifiers.add(identifier);
-            }
-        }
-        return getArtifactCollection(configuration, variantScope, artifactType, new CompositeSpec<ComponentIdentifier>() {
-            @Override
-            public boolean isSatisfiedBy(ComponentIdentifier element) {
-                if (element instanceof ModuleComponentIdentifier) {
-                    String group = ((ModuleComponentIdentifier) element).getGroup();
-                    String module = ((ModuleComponentIdentifier) element).getModule();
-                    return moduleWithoutVersion.contains(group + ":" + module);
-                } else if (componentIdentifiers.contains(element)) {
-                    return true;
-                }
-                return false;
-            }
-        });
-    }
-
-    /**
-     * 功能类似于VariantScopeImpl#getShadeArtifactCollection,用户获取Shade的AAR中的制定资源.
-     *
-     * @param variantScope
-     * @param artifactType
-     * @see com.android.build.gradle.internal.scope.VariantScopeImpl#getArtifactCollection(AndroidArtifacts.ConsumedConfigType, AndroidArtifacts.ArtifactScope, ArtifactType) ;
-     */
-    @NotNull
-    public static ArtifactCollection getShadeArtifactCollection(
-            Project project,
-            VariantScope variantScope,
-            ArtifactType artifactType) {
-        ConfigurationContainer configurations = project.getConfigurations();
-        String variantName = variantScope.getFullVariantName();
-        Configuration shadeClasspath = configurations.maybeCreate(variantName + "ShadeClasspath");
-        Set<ResolvedArtifactResult> artifacts = getArtifactCollection(shadeClasspath, variantScope, MANIFEST).getArtifacts();
-        Configuration runtimeShadeClasspath = configurations.maybeCreate(variantName + "RuntimeShadeClasspath");
-        return getResolvedArtifactResults(variantScope, runtimeShadeClasspath, artifacts, artifactType);
+        return getArtifactCollection(configuration, variantScope, artifactType, components);
     }
 
     public static ArtifactCollection getArtifactCollection(
@@ -533,8 +561,16 @@ public class ShadeTaskManager extends TaskManager {
             GlobalScope globalScope,
             ArtifactType artifactType,
             CompositeSpec<ComponentIdentifier> filter) {
+        return getArtifactCollection(configuration, globalScope, artifactType.getType(), filter);
+    }
+
+    public static ArtifactCollection getArtifactCollection(
+            Configuration configuration,
+            GlobalScope globalScope,
+            String artifactType,
+            CompositeSpec<ComponentIdentifier> filter) {
         Action<AttributeContainer> attributes =
-                container -> container.attribute(AndroidArtifacts.ARTIFACT_TYPE, artifactType.getType());
+                container -> container.attribute(AndroidArtifacts.ARTIFACT_TYPE, artifactType);
 
         boolean lenientMode =
                 Boolean.TRUE.equals(
@@ -0,0 +1,133 @@
+package com.house365.build;
+
+import java.io.File;
+import java.util.List;
+
+import org.gradle.api.artifacts.ArtifactCollection;
+import org.gradle.api.file.FileCollection;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.house365.build.gradle.tasks.ShadeClassesTask;
+import com.house365.build.transform.RClassRemapper;
+import com.house365.build.transform.ShadeAarClassTransform;
+import com.house365.build.util.InputFileCache;
+import com.house365.build.util.PackagingActionCache;
+
+import static com.android.build.gradle.internal.publishing.AndroidArtifacts.ArtifactType.CLASSES;
+import static com.android.build.gradle.internal.publishing.AndroidArtifacts.ArtifactType.MANIFEST;
+
+/**
+ * 单个变体在Transform中需要的shade输入,在创建任务时注册.
+ * <p>
+ * 依赖相关的内容在首次访问时才会解析,之后在同一次构建中复用.
+ * 只保存文件集合、规则及配置值,Transform执行时不需要访问Project.
+ */
+public class ShadeVariant {
+
+    private final ShadeArtifactIndex artifactIndex;
+    private final FileCollection shadeJars;
+    private final Supplier<PackagingActionCache> packagingActions;
+    private final Supplier<List<String>> libraryPackages;
+    private final Supplier<String> appPackageName;
+    private final Supplier<RClassRemapper> remapper;
+    private final int mergeThreads;
+    @Nullable
+    private ShadeClassesTask classesTask;
+
+    /**
+     * @param artifactIndex    变体的shade依赖索引
+     * @param shadeJars        被合并的普通jar依赖
+     * @param mainManifest     当前Library的AndroidManifest.xml
+     * @param packagingActions
+     * @param mergeThreads
+     */
+    public ShadeVariant(@NonNull ShadeArtifactIndex artifactIndex,
+                        @NonNull FileCollection shadeJars,
+                        @NonNull File mainManifest,
+                        @NonNull Supplier<PackagingActionCache> packagingActions,
+                        int mergeThreads) {
+        this.artifactIndex = artifactIndex;
+        this.packagingActions = packagingActions;
+        this.shadeJars = shadeJars;
+        this.libraryPackages = Suppliers.memoize(
+                () -> ShadeAarClassTransform.getLibraryPackages(getManifestArtifacts()));
+        this.appPackageName = Suppliers.memoize(() -> InputFileCache.get().getPackageName(mainManifest));
+        this.remapper = Suppliers.memoize(() -> new RClassRemapper(getAppPackageName(), getLibraryPackages()));
+        this.mergeThreads = mergeThreads;
+    }
+
+    /**
+     * @return 被合并的AAR中的classes.jar.
+     */
+    @NonNull
+    public ArtifactCollection getClassesArtifacts() {
+        return artifactIndex.getArtifactCollection(CLASSES);
+    }
+
+    /**
+     * @return 被合并的AAR中的AndroidManifest.xml.
+     */
+    @NonNull
+    public ArtifactCollection getManifestArtifacts() {
+        return artifactIndex.getArtifactCollection(MANIFEST);
+    }
+
+    /**
+     * @return 被合并的普通jar依赖.
+     */
+    @NonNull
+    public FileCollection getShadeJars() {
+        return shadeJars;
+    }
+
+    /**
+     * @return 当前Library的包名.
+     */
+    @NonNull
+    public String getAppPackageName() {
+        return appPackageName.get();
+    }
+
+    /**
+     * @return 被合并的AAR的包名.
+     */
+    @NonNull
+    public List<String> getLibraryPackages() {
+        return libraryPackages.get();
+    }
+
+    /**
+     * @return 将被合并的AAR的R类引用重命名为当前Library的R类的规则.
+     */
+    @NonNull
+    public RClassRemapper getRemapper() {
+        return remapper.get();
+    }
+
+    @NonNull
+    public PackagingActionCache getPackagingActions() {
+        return packagingActions.get();
+    }
+
+    /**
+     * @return 合并被shade的依赖的任务, 变体(包括测试变体)未注册ShadeAarClassTransform时不会创建该任务, 此时返回null.
+     */
+    @Nullable
+    public ShadeClassesTask getClassesTask() {
+        return classesTask;
+    }
+
+    public void setClassesTask(@Nullable ShadeClassesTask classesTask) {
+        this.classesTask = classesTask;
+    }
+
+    /**
+     * @see ShadeExtension#getMergeThreads()
+     */
+    public int getMergeThreads() {
+        return mergeThreads;
+    }
+}
@@ -17,10 +17,11 @@ class TaskHelper {
     /**
      * 创建ShadeTaskManager对象.
      *
+     * @param shadeExtension
      * @param libraryTaskManager
      * @return
      */
-    public static ShadeTaskManager createShadeTaskManager(BasePlugin basePlugin, LibraryTaskManager libraryTaskManager) {
+    public static ShadeTaskManager createShadeTaskManager(BasePlugin basePlugin, ShadeExtension shadeExtension, LibraryTaskManager libraryTaskManager) {
         GlobalScope globalScope = libraryTaskManager.globalScope
         AndroidBuilder androidBuilder = libraryTaskManager.androidBuilder
         DataBindingBuilder dataBindingBuilder = libraryTaskManager.dataBindingBuilder
@@ -30,6 +31,7 @@ class TaskHelper {
         Recorder recorder = libraryTaskManager.recorder
         return new ShadeTaskManager(
                 basePlugin,
+                shadeExtension,
                 globalScope,
                 libraryTaskManager.project,
                 libraryTaskManager.projectOptions,
@@ -42,7 +44,7 @@ class TaskHelper {
 
     }
 
-    public static ShadeTaskManager createShadeTaskManager(BasePlugin basePlugin) {
-        createShadeTaskManager(basePlugin,FieldUtils.readField(basePlugin, "taskManager", true))
+    public static ShadeTaskManager createShadeTaskManager(BasePlugin basePlugin, ShadeExtension shadeExtension) {
+        createShadeTaskManager(basePlugin, shadeExtension, FieldUtils.readField(basePlugin, "taskManager", true))
     }
 }
@@ -18,7 +18,6 @@ package com.house365.build.gradle.tasks;
 import static com.android.build.gradle.internal.publishing.AndroidArtifacts.ArtifactScope.ALL;
 import static com.android.build.gradle.internal.publishing.AndroidArtifacts.ArtifactScope.MODULE;
 import static com.android.build.gradle.internal.publishing.AndroidArtifacts.ArtifactType.FEATURE_APPLICATION_ID_DECLARATION;
-import static com.android.build.gradle.internal.publishing.AndroidArtifacts.ArtifactType.MANIFEST;
 import static com.android.build.gradle.internal.publishing.AndroidArtifacts.ArtifactType.METADATA_APP_ID_DECLARATION;
 import static com.android.build.gradle.internal.publishing.AndroidArtifacts.ArtifactType.METADATA_FEATURE_MANIFEST;
 import static com.android.build.gradle.internal.publishing.AndroidArtifacts.ConsumedConfigType.COMPILE_CLASSPATH;
@@ -59,7 +58,6 @@ import com.android.utils.FileUtils;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
-import com.house365.build.ShadeTaskManager;
 
 import java.io.File;
 import java.io.IOException;
@@ -440,14 +438,17 @@ public class MergeManifests extends ManifestProcessorTask {
     public static class ConfigAction implements TaskConfigAction<MergeManifests> {
 
         protected final VariantScope variantScope;
+        protected final ArtifactCollection manifests;
         protected final List<Feature> optionalFeatures;
         @Nullable private final File reportFile;
 
         public ConfigAction(
                 @NonNull VariantScope scope,
+                @NonNull ArtifactCollection manifests,
                 @NonNull List<Feature> optionalFeatures,
                 @Nullable File reportFile) {
             this.variantScope = scope;
+            this.manifests = manifests;
             this.optionalFeatures = optionalFeatures;
             this.reportFile = reportFile;
         }
@@ -482,8 +483,7 @@ public class MergeManifests extends ManifestProcessorTask {
 //            // This includes the dependent libraries.
 //            processManifestTask.manifests =
 //                    variantScope.getShadeArtifactCollection(RUNTIME_CLASSPATH, ALL, MANIFEST);
-            processManifestTask.manifests =
-                    ShadeTaskManager.getShadeArtifactCollection(project, variantScope, MANIFEST);
+            processManifestTask.manifests = manifests;
 
             // optional manifest files too.
             if (variantScope.getMicroApkTask() != null &&
@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2015 House365. All rights reserved.
+ */
+
+package com.house365.build.gradle.tasks;
+
+import java.io.File;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.inject.Inject;
+
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.gradle.api.DefaultTask;
+import org.gradle.api.GradleException;
+import org.gradle.api.file.FileCollection;
+import org.gradle.api.tasks.CacheableTask;
+import org.gradle.api.tasks.Classpath;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.OutputFile;
+import org.gradle.api.tasks.TaskAction;
+import org.gradle.workers.IsolationMode;
+import org.gradle.workers.WorkerExecutor;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.commons.ClassRemapper;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.build.api.transform.Status;
+import com.android.build.gradle.internal.dsl.PackagingOptions;
+import com.android.build.gradle.internal.scope.TaskConfigAction;
+import com.android.build.gradle.internal.scope.VariantScope;
+import com.android.builder.packaging.ZipAbortException;
+import com.android.utils.FileUtils;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.house365.build.ShadeVariant;
+import com.house365.build.util.InputFileCache;
+import com.house365.build.util.PackagingActionCache;
+
+/**
+ * 合并被shade的依赖中的class,与工程本身的class无关,可通过构建缓存复用.
+ * <p>
+ * 被合并的AAR中的class重命名R引用后写入classes.jar(AAR中的R文件丢弃),普通jar依赖写入shade.jar.
+ * 输入文件按内容计算(与路径及时间戳无关),重命名规则由包名决定,输出的jar中条目时间固定,
+ * 因此不同机器、不同检出目录下的构建可以共享输出.
+ * 合并操作通过Worker执行,不同变体的任务可以同时进行.
+ */
+@CacheableTask
+public class ShadeClassesTask extends DefaultTask {
+
+    /**
+     * 隔离模式下Worker仅能加载插件本身及参数的类,以下类所在的jar需要加入Worker的classpath.
+     */
+    private static final List<Class<?>> WORKER_CLASSPATH = Arrays.asList(
+            PackagingOptions.class,
+            com.android.builder.model.PackagingOptions.class,
+            Status.class,
+            ZipAbortException.class,
+            FileUtils.class,
+            ImmutableList.class,
+            ZipFile.class,
+            ClassReader.class,
+            ClassRemapper.class);
+
+    private final WorkerExecutor workerExecutor;
+
+    private ShadeVariant variant;
+
+    private IsolationMode isolationMode;
+
+    @Nullable
+    private String maxHeapSize;
+
+    private File classesJar;
+
+    private File shadeJar;
+
+    /**
+     * 各变体共享的合并结果.
+     */
+    private ShadeSharedOutputs sharedOutputs;
+
+    /**
+     * RelocatedJarCache所在的Gradle用户目录,在配置时获取,执行时不访问Project.
+     */
+    private File gradleUserHome;
+
+    @Inject
+    public ShadeClassesTask(WorkerExecutor workerExecutor) {
+        this.workerExecutor = workerExecutor;
+    }
+
+    @Classpath
+    public FileCollection getAarClasses() {
+        return variant.getClassesArtifacts().getArtifactFiles();
+    }
+
+    @Classpath
+    public FileCollection getShadeJars() {
+        return variant.getShadeJars();
+    }
+
+    @Input
+    public String getAppPackageName() {
+        return variant.getAppPackageName();
+    }
+
+    @Input
+    public List<String> getLibraryPackages() {
+        return variant.getLibraryPackages();
+    }
+
+    @Input
+    public String getPackagingOptions() {
+        return variant.getPackagingActions().getKey();
+    }
+
+    @Internal
+    public ShadeVariant getVariant() {
+        return variant;
+    }
+
+    @Internal
+    public File getGradleUserHome() {
+        return gradleUserHome;
+    }
+
+    @OutputFile
+    public File getClassesJar() {
+        return classesJar;
+    }
+
+    @OutputFile
+    public File getShadeJar() {
+        return shadeJar;
+    }
+
+    @TaskAction
+    public void shade() {
+        PackagingActionCache packagingActions = variant.getPackagingActions();
+        List<File> aarClasses = new ArrayList<>(getAarClasses().getFiles());
+        List<File> shadeJars = new ArrayList<>(getShadeJars().getFiles());
+        String key = getInputKey(aarClasses, shadeJars, packagingActions);
+        sharedOutputs.markUsed(key);
+        workerExecutor.submit(ShadeClassesWorker.class, config -> {
+            config.setDisplayName("Shade classes for " + getName());
+            config.setIsolationMode(isolationMode);
+            if (isolationMode != IsolationMode.NONE) {
+                config.classpath(getWorkerClasspath());
+            }
+            if (maxHeapSize != null) {
+                config.forkOptions(options -> options.setMaxHeapSize(maxHeapSize));
+            }
+            config.setParams(
+                    aarClasses,
+                    shadeJars,
+                    getAppPackageName(),
+                    new ArrayList<>(getLibraryPackages()),
+                    new HashSet<>(packagingActions.getExcludes()),
+                    new HashSet<>(packagingActions.getPickFirsts()),
+                    new HashSet<>(packagingActions.getMerges()),
+                    variant.getMergeThreads(),
+                    classesJar,
+                    shadeJar,
+                    gradleUserHome,
+                    sharedOutputs.getRoot(),
+                    key);
+        });
+    }
+
+    /**
+     * 根据输入jar的内容、包名及packagingOptions计算key,输入相同的变体得到相同的key.
+     */
+    @NonNull
+    private String getInputKey(@NonNull List<File> aarClasses,
+                               @NonNull List<File> shadeJars,
+                               @NonNull PackagingActionCache packagingActions) {
+        Hasher hasher = Hashing.sha1().newHasher();
+        for (List<File> files : Arrays.asList(aarClasses, shadeJars)) {
+            hasher.putInt(files.size());
+            for (File file : files) {
+                hasher.putString(InputFileCache.get().getContentHash(file), StandardCharsets.UTF_8);
+            }
+        }
+        hasher.putString(getAppPackageName(), StandardCharsets.UTF_8);
+        hasher.putString(String.valueOf(getLibraryPackages()), StandardCharsets.UTF_8);
+        hasher.putString(packagingActions.getKey(), StandardCharsets.UTF_8);
+        return hasher.hash().toString();
+    }
+
+    @NonNull
+    private static Set<File> getWorkerClasspath() {
+        Set<File> classpath = new LinkedHashSet<>();
+        for (Class<?> type : WORKER_CLASSPATH) {
+            CodeSource codeSource = type.getProtectionDomain().getCodeSource();
+            if (codeSource == null || codeSource.getLocation() == null) {
+                continue;
+            }
+            try {
+                classpath.add(new File(codeSource.getLocation().toURI()));
+            } catch (URISyntaxException e) {
+                throw new GradleException("Unable to locate the classpath of " + type.getName(), e);
+            }
+        }
+        return classpath;
+    }
+
+    public static class ConfigAction implements TaskConfigAction<ShadeClassesTask> {
+
+        private final VariantScope variantScope;
+        private final ShadeVariant variant;
+        private final ShadeSharedOutputs sharedOutputs;
+        private final IsolationMode isolationMode;
+        @Nullable
+        private final String maxHeapSize;
+
+        public ConfigAction(@NonNull VariantScope variantScope,
+                            @NonNull ShadeVariant variant,
+                            @NonNull ShadeSharedOutputs sharedOutputs,
+                            @NonNull IsolationMode isolationMode,
+                            @Nullable String maxHeapSize) {
+            this.variantScope = variantScope;
+            this.variant = variant;
+            this.sharedOutputs = sharedOutputs;
+            this.isolationMode = isolationMode;
+            this.maxHeapSize = maxHeapSize;
+        }
+
+        @NonNull
+        @Override
+        public String getName() {
+            return variantScope.getTaskName("shade", "Classes");
+        }
+
+        @NonNull
+        @Override
+        public Class<ShadeClassesTask> getType() {
+            return ShadeClassesTask.class;
+        }
+
+        @Override
+        public void execute(@NonNull ShadeClassesTask task) {
+            File outputDir = FileUtils.join(variantScope.getGlobalScope().getIntermediatesDir(),
+                    "shade", variantScope.getVariantConfiguration().getDirName());
+            task.variant = variant;
+            task.isolationMode = isolationMode;
+            task.maxHeapSize = maxHeapSize;
+            task.classesJar = new File(outputDir, "classes.jar");
+            task.shadeJar = new File(outputDir, "shade.jar");
+            task.sharedOutputs = sharedOutputs;
+            task.gradleUserHome = task.getProject().getGradle().getGradleUserHomeDir();
+            variant.setClassesTask(task);
+        }
+    }
+}
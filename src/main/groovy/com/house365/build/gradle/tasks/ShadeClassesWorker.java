@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2015 House365. All rights reserved.
+ */
+
+package com.house365.build.gradle.tasks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.FileSystemException;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import javax.inject.Inject;
+
+import com.android.utils.FileUtils;
+import com.google.common.io.Files;
+import com.house365.build.transform.IncrementalJarMerger;
+import com.house365.build.transform.RClassRemapper;
+import com.house365.build.transform.RelocatedJarCache;
+import com.house365.build.util.PackagingActionCache;
+import com.house365.build.util.ZipEntryFilterUtil;
+
+/**
+ * 在Worker中执行{@link ShadeClassesTask}的合并操作.
+ * <p>
+ * 参数只包含文件、包名及packagingOptions规则,可以传递给独立的Worker进程.
+ */
+public class ShadeClassesWorker implements Runnable {
+
+    /**
+     * 共享目录中的合并已完成的标记.
+     */
+    private static final String MARKER = "done";
+
+    private final ArrayList<File> aarClasses;
+    private final ArrayList<File> shadeJars;
+    private final String appPackageName;
+    private final ArrayList<String> libraryPackages;
+    private final HashSet<String> excludes;
+    private final HashSet<String> pickFirsts;
+    private final HashSet<String> merges;
+    private final int mergeThreads;
+    private final File classesJar;
+    private final File shadeJar;
+    private final File gradleUserHome;
+    private final File sharedRoot;
+    private final String key;
+
+    @Inject
+    public ShadeClassesWorker(ArrayList<File> aarClasses,
+                              ArrayList<File> shadeJars,
+                              String appPackageName,
+                              ArrayList<String> libraryPackages,
+                              HashSet<String> excludes,
+                              HashSet<String> pickFirsts,
+                              HashSet<String> merges,
+                              Integer mergeThreads,
+                              File classesJar,
+                              File shadeJar,
+                              File gradleUserHome,
+                              File sharedRoot,
+                              String key) {
+        this.aarClasses = aarClasses;
+        this.shadeJars = shadeJars;
+        this.appPackageName = appPackageName;
+        this.libraryPackages = libraryPackages;
+        this.excludes = excludes;
+        this.pickFirsts = pickFirsts;
+        this.merges = merges;
+        this.mergeThreads = mergeThreads;
+        this.classesJar = classesJar;
+        this.shadeJar = shadeJar;
+        this.gradleUserHome = gradleUserHome;
+        this.sharedRoot = sharedRoot;
+        this.key = key;
+    }
+
+    @Override
+    public void run() {
+        try {
+            FileUtils.deleteIfExists(classesJar);
+            FileUtils.deleteIfExists(shadeJar);
+
+            // 输入相同的变体共享同一份合并结果,已发布的结果直接复制.
+            File sharedDir = new File(sharedRoot, key);
+            File outputDir = new File(sharedDir, MARKER).isFile() ? sharedDir : publish(sharedDir);
+            copy(new File(outputDir, classesJar.getName()), classesJar);
+            copy(new File(outputDir, shadeJar.getName()), shadeJar);
+            if (!outputDir.equals(sharedDir)) {
+                FileUtils.deletePath(outputDir);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void merge(File classesJar, File shadeJar) throws IOException {
+        PackagingActionCache packagingActions = PackagingActionCache.create(excludes, pickFirsts, merges);
+        RClassRemapper remapper = new RClassRemapper(appPackageName, libraryPackages);
+
+        // 各AAR单独重命名并缓存,最终合并只需复制缓存中的条目.
+        RelocatedJarCache cache = new RelocatedJarCache(gradleUserHome, remapper, packagingActions);
+        List<File> relocatedJars = cache.getAll(aarClasses, mergeThreads);
+
+        IncrementalJarMerger merger = new IncrementalJarMerger(mergeThreads);
+        IncrementalJarMerger.Sink classSink = merger.addSink(classesJar,
+                new ZipEntryFilterUtil.PackagingFilter(packagingActions, null),
+                null, null);
+        IncrementalJarMerger.Sink shadeSink = merger.addSink(shadeJar,
+                new ZipEntryFilterUtil.PackagingFilter(packagingActions, null),
+                null, null);
+        try {
+            for (File jar : relocatedJars) {
+                merger.addProcessedJar(jar, null, archivePath -> classSink);
+            }
+            for (File jar : shadeJars) {
+                merger.addJar(jar, null, archivePath -> shadeSink);
+            }
+            merger.commit();
+        } finally {
+            merger.close();
+        }
+    }
+
+    /**
+     * 合并到唯一的临时目录,完成后原子地重命名为共享目录,不同进程及ClassLoader中的Worker互不影响.
+     * 共享目录已被其他Worker发布时丢弃本次结果.
+     *
+     * @return 包含合并结果的目录.
+     */
+    private File publish(File sharedDir) throws IOException {
+        FileUtils.mkdirs(sharedRoot);
+        File tmpDir = java.nio.file.Files.createTempDirectory(sharedRoot.toPath(), key + ".tmp").toFile();
+        try {
+            merge(new File(tmpDir, classesJar.getName()), new File(tmpDir, shadeJar.getName()));
+            Files.touch(new File(tmpDir, MARKER));
+            try {
+                java.nio.file.Files.move(tmpDir.toPath(), sharedDir.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                return sharedDir;
+            } catch (FileSystemException e) {
+                // 目标目录已存在且不为空,其他Worker已发布,或为不完整的旧目录.
+                if (!sharedDir.isDirectory()) {
+                    throw e;
+                }
+                if (new File(sharedDir, MARKER).isFile()) {
+                    FileUtils.deletePath(tmpDir);
+                    return sharedDir;
+                }
+                // 共享目录不完整(旧版本遗留),本次使用临时目录中的结果,复制后删除.
+                return tmpDir;
+            }
+        } catch (IOException | RuntimeException e) {
+            FileUtils.deletePath(tmpDir);
+            throw e;
+        }
+    }
+
+    /**
+     * 复制而不是硬链接,其他工具原地修改变体的输出时不会影响共享的结果及其他变体.
+     */
+    private static void copy(File from, File to) throws IOException {
+        if (!from.isFile()) {
+            return;
+        }
+        FileUtils.mkdirs(to.getParentFile());
+        Files.copy(from, to);
+    }
+}
@@ -13,18 +13,16 @@ import java.util.regex.Pattern;
 
 import org.gradle.api.Action;
 import org.gradle.api.Task;
-import org.gradle.api.artifacts.ArtifactCollection;
+import org.gradle.api.file.FileCollection;
 import org.gradle.tooling.exceptions.UnsupportedBuildArgumentException;
 
 import com.android.SdkConstants;
 import com.android.annotations.NonNull;
-import com.android.build.gradle.internal.publishing.AndroidArtifacts;
-import com.android.build.gradle.internal.scope.VariantScope;
 import com.android.utils.FileUtils;
 import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.io.Files;
-import com.house365.build.ShadeTaskManager;
 
 /**
  * A Transforms that takes the project/project local streams for native libs and processes and
@@ -34,25 +32,32 @@ import com.house365.build.ShadeTaskManager;
  */
 public class ShadeJniLibsAction implements Action<Task> {
 
-    private ShadeTaskManager shadeTaskManager;
+    private final FileCollection jniArtifacts;
+    private final Set<String> supportedAbis;
     private final Pattern pattern;
     private final File jniLibsFolder;
-    private VariantScope variantScope;
 
-    public ShadeJniLibsAction(ShadeTaskManager shadeTaskManager,
-                              VariantScope variantScope,
+    /**
+     * 只保存文件及abi配置,执行时不再访问Project及VariantScope.
+     *
+     * @param jniArtifacts  被合并的AAR中的jni目录
+     * @param supportedAbis 变体支持的abi
+     * @param jniLibsFolder
+     */
+    public ShadeJniLibsAction(FileCollection jniArtifacts,
+                              Set<String> supportedAbis,
                               File jniLibsFolder) {
-        this.variantScope = variantScope;
+        this.jniArtifacts = jniArtifacts;
         this.jniLibsFolder = jniLibsFolder;
-        this.shadeTaskManager = shadeTaskManager;
         StringBuilder stringBuilder = new StringBuilder();
-        if (this.variantScope.getVariantConfiguration().getSupportedAbis() != null) {
-            if (this.variantScope.getVariantConfiguration().getSupportedAbis().size() == 0) {
+        if (supportedAbis != null) {
+            if (supportedAbis.size() == 0) {
                 throw new UnsupportedBuildArgumentException("please keep at least one abi in ndk.abiFilters.");
             }
-            for (String abi : this.variantScope.getVariantConfiguration().getSupportedAbis()) {
+            for (String abi : supportedAbis) {
                 stringBuilder.append("(").append(Pattern.quote(abi)).append(")");
             }
+            this.supportedAbis = ImmutableSet.copyOf(supportedAbis);
             this.pattern = Pattern.compile("[" + stringBuilder + "]+/[^/]+\\.so");
         } else {
             throw new UnsupportedBuildArgumentException("please configure abiFilters.");
@@ -92,10 +97,9 @@ public class ShadeJniLibsAction implements Action<Task> {
 
     @Override
     public void execute(Task task) {
-        ArtifactCollection artifacts = shadeTaskManager.getShadeArtifactCollection(variantScope, AndroidArtifacts.ArtifactType.JNI);
-        Set<String> filters = variantScope.getVariantConfiguration().getSupportedAbis();
+        Set<String> filters = supportedAbis;
         ArrayList<File> jniDirNames = new ArrayList<>();
-        for (File file : artifacts.getArtifactFiles()) {
+        for (File file : jniArtifacts) {
             boolean hasAbi = false;
             boolean missingAbi = false;
             for (String abi : filters) {
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2015 House365. All rights reserved.
+ */
+
+package com.house365.build.gradle.tasks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.android.annotations.NonNull;
+import com.android.utils.FileUtils;
+
+/**
+ * 同一工程中各变体共享的{@link ShadeClassesTask}合并结果,每个子目录以输入的key命名.
+ * <p>
+ * 记录本次构建中使用过的key,构建结束时删除其余的目录(包括中断的Worker遗留的临时目录),
+ * 变体的输出是复制出来的,删除共享目录不会影响已有的输出.
+ */
+public class ShadeSharedOutputs {
+
+    private final File root;
+
+    private final Set<String> usedKeys = ConcurrentHashMap.newKeySet();
+
+    public ShadeSharedOutputs(@NonNull File root) {
+        this.root = root;
+    }
+
+    @NonNull
+    public File getRoot() {
+        return root;
+    }
+
+    public void markUsed(@NonNull String key) {
+        usedKeys.add(key);
+    }
+
+    /**
+     * 删除本次构建未使用的结果.没有任何合并任务执行时不知道哪些结果仍然有效,保持不变.
+     */
+    public void prune() {
+        if (usedKeys.isEmpty()) {
+            return;
+        }
+        File[] children = root.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                if (!usedKeys.contains(child.getName())) {
+                    try {
+                        FileUtils.deletePath(child);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            }
+        }
+        usedKeys.clear();
+    }
+}
@@ -0,0 +1,544 @@
+/*
+ * Copyright (C) 2015 House365. All rights reserved.
+ */
+
+package com.house365.build.transform;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.build.api.transform.Status;
+import com.android.builder.packaging.ZipAbortException;
+import com.android.utils.FileUtils;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.house365.build.util.ZipEntryFilterUtil;
+
+/**
+ * 单次遍历的增量jar合并.
+ * <p>
+ * 每个输入源只打开、遍历一次,由{@link EntryRouter}决定每个条目写入哪一个{@link Sink},
+ * 或者直接丢弃.每个Sink对应一个输出jar,拥有独立的过滤规则及上一次的构建状态.
+ * <p>
+ * 对于未发生变化且上一次即由同一输入源提供的条目,直接从上一次的输出中复制,
+ * 其余条目从输入源读取并经过{@link EntryTransformer}处理后写入.
+ * 当Sink的previous为null时等同于完整构建.
+ * <p>
+ * 当parallelism大于1时,输入源的读取、解压及{@link EntryTransformer}处理在工作线程中并行执行,
+ * 写入仍由调用线程按照输入源添加的顺序完成,因此输出条目的顺序以及重复条目、pickFirst的处理结果
+ * 与串行合并完全一致.{@link EntryRouter}及{@link EntryTransformer}需要支持多线程调用.
+ * <p>
+ * 所有条目均以压缩后的形式写入:不需要{@link EntryTransformer}处理的条目以及从上一次输出中复用的条目
+ * 直接复制源文件中的压缩数据、CRC及大小,不再解压和重新压缩;其余条目在工作线程中压缩,写入线程只负责复制.
+ * <p>
+ * 所有输入添加完成后需调用{@link #commit()}写入剩余条目并替换输出jar.未调用{@link #commit()}即{@link #close()}时,
+ * 例如合并或调用方在添加输入的过程中抛出异常,丢弃所有Sink的临时文件,已有的输出jar保持不变.
+ */
+public class IncrementalJarMerger implements Closeable {
+
+    private static final long ZERO_TIME = 0L;
+
+    /**
+     * 对单个条目内容进行处理,例如重命名R文件引用.
+     * <p>
+     * 内容不需要修改时应返回传入的data本身,此时将直接复制源文件中的压缩数据.
+     */
+    public interface EntryTransformer {
+        @NonNull
+        byte[] transform(@NonNull String archivePath, @NonNull byte[] data) throws IOException;
+    }
+
+    /**
+     * 决定条目的去向,返回null表示丢弃该条目.
+     */
+    public interface EntryRouter {
+        @Nullable
+        Sink route(@NonNull String archivePath);
+    }
+
+    private final List<Sink> sinks = new ArrayList<>();
+
+    @Nullable
+    private final ExecutorService executor;
+
+    /**
+     * 同时处于读取中或等待写入的输入源数量上限,用于限制内存占用.
+     */
+    private final int window;
+
+    private final Deque<PendingSource> pending = new ArrayDeque<>();
+
+    /**
+     * 压缩使用的Deflater,在线程间复用,close时释放.
+     */
+    private final ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+
+    private boolean committed;
+
+    public IncrementalJarMerger() {
+        this(1);
+    }
+
+    public IncrementalJarMerger(int parallelism) {
+        if (parallelism > 1) {
+            this.executor = Executors.newFixedThreadPool(parallelism,
+                    new ThreadFactoryBuilder().setNameFormat("shade-jar-merger-%d").setDaemon(true).build());
+            this.window = parallelism * 2;
+        } else {
+            this.executor = null;
+            this.window = 1;
+        }
+    }
+
+    @NonNull
+    public Sink addSink(
+            @NonNull File jarFile,
+            @NonNull ZipEntryFilterUtil.PackagingFilter filter,
+            @Nullable ShadeMergeState.OutputState previous,
+            @Nullable EntryTransformer transformer) throws IOException {
+        Sink sink = new Sink(jarFile, filter, previous, transformer);
+        sinks.add(sink);
+        return sink;
+    }
+
+    /**
+     * @param jar
+     * @param status 输入源的状态,非Transform输入时为null,此时通过文件指纹判断.
+     * @param router
+     */
+    public void addJar(@NonNull File jar, @Nullable Status status, @NonNull EntryRouter router)
+            throws IOException {
+        boolean changed = status != null && status != Status.NOTCHANGED;
+        submit(jar, () -> readJar(jar, changed, router, true));
+    }
+
+    /**
+     * 与{@link #addJar(File, Status, EntryRouter)}相同,但条目已经处理过,不再经过Sink的{@link EntryTransformer}.
+     *
+     * @param jar
+     * @param status
+     * @param router
+     */
+    public void addProcessedJar(@NonNull File jar, @Nullable Status status, @NonNull EntryRouter router)
+            throws IOException {
+        boolean changed = status != null && status != Status.NOTCHANGED;
+        submit(jar, () -> readJar(jar, changed, router, false));
+    }
+
+    /**
+     * @param directory
+     * @param changedFiles 目录中发生变化的文件,为null时视为所有文件均已变化.
+     * @param router
+     */
+    public void addDirectory(@NonNull File directory, @Nullable Map<File, Status> changedFiles,
+                             @NonNull EntryRouter router) throws IOException {
+        submit(directory, () -> {
+            List<PendingEntry> entries = new ArrayList<>();
+            readDirectory(directory, directory, new ArrayList<>(), changedFiles, router, entries);
+            return entries;
+        });
+    }
+
+    private void submit(@NonNull File source, @NonNull Callable<List<PendingEntry>> reader)
+            throws IOException {
+        Future<List<PendingEntry>> future;
+        if (executor != null) {
+            future = executor.submit(reader);
+        } else {
+            CompletableFuture<List<PendingEntry>> completed = new CompletableFuture<>();
+            try {
+                completed.complete(reader.call());
+            } catch (Exception e) {
+                completed.completeExceptionally(e);
+            }
+            future = completed;
+        }
+        pending.addLast(new PendingSource(source, future));
+        while (pending.size() >= window) {
+            writeNext();
+        }
+    }
+
+    @NonNull
+    private RawEntry deflate(@NonNull byte[] data) throws IOException {
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        }
+        try {
+            return RawEntry.deflate(data, deflater);
+        } finally {
+            deflaters.offer(deflater);
+        }
+    }
+
+    @NonNull
+    private List<PendingEntry> readJar(@NonNull File jar, boolean changed, @NonNull EntryRouter router,
+                                       boolean transform) throws IOException {
+        List<PendingEntry> result = new ArrayList<>();
+        try (ZipFile zipFile = new ZipFile(jar)) {
+            Enumeration<ZipArchiveEntry> entries = zipFile.getEntries();
+            while (entries.hasMoreElements()) {
+                ZipArchiveEntry entry = entries.nextElement();
+                if (entry.isDirectory()) {
+                    continue;
+                }
+                String archivePath = entry.getName();
+                Sink sink = router.route(archivePath);
+                if (sink == null || sink.filter.isExcluded(archivePath)) {
+                    continue;
+                }
+                RawEntry raw = changed ? null : sink.readPrevious(archivePath, jar);
+                if (raw == null) {
+                    if ((!transform || sink.transformer == null) && RawEntry.canCopy(entry)) {
+                        raw = RawEntry.copy(zipFile, entry);
+                    } else {
+                        byte[] data;
+                        try (InputStream in = zipFile.getInputStream(entry)) {
+                            data = ByteStreams.toByteArray(in);
+                        }
+                        byte[] transformed = transform ? sink.transform(archivePath, data) : data;
+                        raw = transformed == data && RawEntry.canCopy(entry)
+                                ? RawEntry.copy(zipFile, entry)
+                                : deflate(transformed);
+                    }
+                }
+                result.add(new PendingEntry(sink, archivePath, raw));
+            }
+        }
+        return result;
+    }
+
+    private void readDirectory(@NonNull File root, @NonNull File from, @NonNull List<String> segments,
+                               @Nullable Map<File, Status> changedFiles,
+                               @NonNull EntryRouter router,
+                               @NonNull List<PendingEntry> result) throws IOException {
+        File[] children = from.listFiles();
+        if (children == null) {
+            return;
+        }
+        List<File> sorted = new ArrayList<>(children.length);
+        Collections.addAll(sorted, children);
+        sorted.sort((o1, o2) -> o1.getName().compareTo(o2.getName()));
+        for (File child : sorted) {
+            segments.add(child.getName());
+            if (child.isDirectory()) {
+                readDirectory(root, child, segments, changedFiles, router, result);
+            } else if (child.isFile()) {
+                String archivePath = String.join("/", segments);
+                Sink sink = router.route(archivePath);
+                if (sink != null && !sink.filter.isExcluded(archivePath)) {
+                    boolean changed = changedFiles == null || changedFiles.containsKey(child);
+                    RawEntry raw = changed ? null : sink.readPrevious(archivePath, root);
+                    if (raw == null) {
+                        raw = deflate(sink.transform(archivePath, Files.readAllBytes(child.toPath())));
+                    }
+                    result.add(new PendingEntry(sink, archivePath, raw));
+                }
+            }
+            segments.remove(segments.size() - 1);
+        }
+    }
+
+    /**
+     * 按顺序写入下一个输入源的条目,重复条目及pickFirst在此处依次判断.
+     */
+    private void writeNext() throws IOException {
+        PendingSource source = pending.removeFirst();
+        try {
+            List<PendingEntry> entries;
+            try {
+                entries = source.entries.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                throw new IOException(cause);
+            }
+            for (Sink sink : sinks) {
+                sink.beginSource(source.file);
+            }
+            for (PendingEntry entry : entries) {
+                if (entry.sink.checkEntry(entry.archivePath, entry.raw)) {
+                    entry.sink.write(entry.archivePath, entry.raw, source.file);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // 之后的输入源不再写入,等待close时丢弃.
+            pending.clear();
+            throw e;
+        }
+    }
+
+    /**
+     * 按顺序写入所有剩余的条目,之后{@link #close()}时用新生成的jar替换各Sink已有的输出.
+     */
+    public void commit() throws IOException {
+        while (!pending.isEmpty()) {
+            writeNext();
+        }
+        committed = true;
+    }
+
+    /**
+     * 释放线程及Deflater.未成功调用{@link #commit()}时丢弃所有Sink的临时文件,已有的输出jar保持不变.
+     */
+    @Override
+    public void close() throws IOException {
+        IOException exception = null;
+        pending.clear();
+        if (executor != null) {
+            executor.shutdownNow();
+            awaitTermination(executor);
+        }
+        Deflater deflater;
+        while ((deflater = deflaters.poll()) != null) {
+            deflater.end();
+        }
+        for (Sink sink : sinks) {
+            try {
+                // 未提交时不替换已有的输出,避免与上一次的构建状态不一致.
+                sink.close(committed);
+            } catch (IOException e) {
+                if (exception == null) {
+                    exception = e;
+                } else {
+                    exception.addSuppressed(e);
+                }
+            }
+        }
+        if (exception != null) {
+            throw exception;
+        }
+    }
+
+    private static void awaitTermination(@NonNull ExecutorService executor) {
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class PendingSource {
+        final File file;
+        final Future<List<PendingEntry>> entries;
+
+        PendingSource(File file, Future<List<PendingEntry>> entries) {
+            this.file = file;
+            this.entries = entries;
+        }
+    }
+
+    private static final class PendingEntry {
+        final Sink sink;
+        final String archivePath;
+        final RawEntry raw;
+
+        PendingEntry(Sink sink, String archivePath, RawEntry raw) {
+            this.sink = sink;
+            this.archivePath = archivePath;
+            this.raw = raw;
+        }
+    }
+
+    /**
+     * 压缩后的条目数据.
+     */
+    static final class RawEntry {
+        final int method;
+        final long crc;
+        final long size;
+        final byte[] data;
+
+        private RawEntry(int method, long crc, long size, byte[] data) {
+            this.method = method;
+            this.crc = crc;
+            this.size = size;
+            this.data = data;
+        }
+
+        static boolean canCopy(@NonNull ZipArchiveEntry entry) {
+            int method = entry.getMethod();
+            return (method == ZipEntry.DEFLATED || method == ZipEntry.STORED)
+                    && entry.getCrc() != -1
+                    && entry.getSize() != ZipArchiveEntry.SIZE_UNKNOWN;
+        }
+
+        @NonNull
+        static RawEntry copy(@NonNull ZipFile zipFile, @NonNull ZipArchiveEntry entry) throws IOException {
+            try (InputStream in = zipFile.getRawInputStream(entry)) {
+                return new RawEntry(entry.getMethod(), entry.getCrc(), entry.getSize(),
+                        ByteStreams.toByteArray(in));
+            }
+        }
+
+        @NonNull
+        static RawEntry deflate(@NonNull byte[] data, @NonNull Deflater deflater) throws IOException {
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            deflater.reset();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 2 + 64);
+            try (DeflaterOutputStream out = new DeflaterOutputStream(bytes, deflater)) {
+                out.write(data);
+            }
+            return new RawEntry(ZipEntry.DEFLATED, crc.getValue(), data.length, bytes.toByteArray());
+        }
+    }
+
+    /**
+     * 单个输出jar.
+     */
+    public static class Sink {
+        private final File jarFile;
+        private final File tempFile;
+        private final ZipEntryFilterUtil.PackagingFilter filter;
+        @Nullable
+        private final ShadeMergeState.OutputState previous;
+        @Nullable
+        private final EntryTransformer transformer;
+        private final ShadeMergeState.OutputState state = new ShadeMergeState.OutputState();
+
+        @Nullable
+        private final ZipFile previousJar;
+        @Nullable
+        private ZipArchiveOutputStream out;
+
+        Sink(@NonNull File jarFile,
+             @NonNull ZipEntryFilterUtil.PackagingFilter filter,
+             @Nullable ShadeMergeState.OutputState previous,
+             @Nullable EntryTransformer transformer) throws IOException {
+            this.jarFile = jarFile;
+            this.tempFile = new File(jarFile.getPath() + ".tmp");
+            this.filter = filter;
+            this.transformer = transformer;
+            if (previous != null && jarFile.isFile()) {
+                this.previous = previous;
+                this.previousJar = new ZipFile(jarFile);
+            } else {
+                this.previous = null;
+                this.previousJar = null;
+            }
+        }
+
+        void beginSource(@NonNull File source) {
+            state.addSource(source);
+            filter.reset(source);
+        }
+
+        boolean checkEntry(@NonNull String archivePath, @NonNull RawEntry raw) throws IOException {
+            try {
+                return filter.checkEntry(archivePath, raw.crc, raw.size);
+            } catch (ZipAbortException e) {
+                throw new IOException(e);
+            }
+        }
+
+        /**
+         * 从上一次的输出中读取条目,仅当输入源未变化且该条目上一次也是由source提供时才可使用.
+         *
+         * @return 条目的压缩数据, 不可复用时返回null.
+         */
+        @Nullable
+        RawEntry readPrevious(@NonNull String archivePath, @NonNull File source) throws IOException {
+            if (previousJar == null
+                    || !previous.isSourceUnchanged(source)
+                    || !previous.isOwnedBy(archivePath, source)) {
+                return null;
+            }
+            ZipArchiveEntry entry = previousJar.getEntry(archivePath);
+            if (entry == null || !RawEntry.canCopy(entry)) {
+                return null;
+            }
+            return RawEntry.copy(previousJar, entry);
+        }
+
+        @NonNull
+        byte[] transform(@NonNull String archivePath, @NonNull byte[] data) throws IOException {
+            return transformer != null ? transformer.transform(archivePath, data) : data;
+        }
+
+        void write(@NonNull String archivePath, @NonNull RawEntry raw, @NonNull File source)
+                throws IOException {
+            if (out == null) {
+                // 延迟创建输出,避免没有任何条目时生成无效的zip文件.
+                FileUtils.mkdirs(jarFile.getParentFile());
+                out = new ZipArchiveOutputStream(tempFile);
+            }
+            ZipArchiveEntry entry = new ZipArchiveEntry(archivePath);
+            entry.setTime(ZERO_TIME);
+            entry.setMethod(raw.method);
+            entry.setCrc(raw.crc);
+            entry.setSize(raw.size);
+            entry.setCompressedSize(raw.data.length);
+            out.addRawArchiveEntry(entry, new ByteArrayInputStream(raw.data));
+            state.addOwner(archivePath, source);
+        }
+
+        @NonNull
+        public ShadeMergeState.OutputState getState() {
+            return state;
+        }
+
+        /**
+         * @param commit 为false时丢弃临时文件,已有的输出jar保持不变.
+         */
+        void close(boolean commit) throws IOException {
+            try {
+                if (out != null) {
+                    out.close();
+                }
+            } finally {
+                if (previousJar != null) {
+                    previousJar.close();
+                }
+                if (!commit) {
+                    FileUtils.deleteIfExists(tempFile);
+                }
+            }
+            if (!commit) {
+                return;
+            }
+            if (out != null) {
+                Files.move(tempFile.toPath(), jarFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                FileUtils.deleteIfExists(jarFile);
+            }
+        }
+    }
+}
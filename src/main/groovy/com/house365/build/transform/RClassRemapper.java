@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2015 House365. All rights reserved.
+ */
+
+package com.house365.build.transform;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.commons.ClassRemapper;
+import org.objectweb.asm.commons.Remapper;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.house365.build.util.ConstantPoolScanner;
+
+import static com.android.SdkConstants.DOT_CLASS;
+
+/**
+ * 将被合并的AAR中对其自身R类的引用重命名为当前Library的R类.
+ * <p>
+ * 等价于为每个AAR包名生成如下jarjar规则:
+ * <pre>
+ * rule libPackage.R$*  appPackage.R$@1
+ * rule libPackage.R    appPackage.R
+ * </pre>
+ * 但规则被编译为以包名为key的哈希表,每次类型查找只需一次定位及一次哈希查找,与被合并的AAR数量无关.
+ * 该类不可变,可在多个线程中同时使用.
+ */
+public class RClassRemapper extends Remapper {
+
+    /**
+     * AAR包名的内部名称(a/b) -> 当前Library R类的内部名称(c/d/R).
+     */
+    private final Map<String, String> packages;
+
+    private final ConstantPoolScanner scanner;
+
+    private final String key;
+
+    public RClassRemapper(@NonNull String appPackageName, @NonNull Collection<String> libraryPackages) {
+        String appR = appPackageName.replace('.', '/') + "/R";
+        packages = new HashMap<>(libraryPackages.size() * 2);
+        Collection<String> rClasses = new TreeSet<>();
+        for (String libraryPackage : libraryPackages) {
+            packages.put(libraryPackage.replace('.', '/'), appR);
+            rClasses.add(libraryPackage + ".R");
+        }
+        scanner = new ConstantPoolScanner(rClasses);
+        key = appPackageName + "<-" + rClasses;
+    }
+
+    /**
+     * 用于判断规则是否发生变化.
+     */
+    @NonNull
+    public String getKey() {
+        return key;
+    }
+
+    @Override
+    public String map(String typeName) {
+        String mapped = mapR(typeName, '/');
+        return mapped != null ? mapped : typeName;
+    }
+
+    @Override
+    public Object mapValue(Object value) {
+        // 与jarjar一致,字符串常量中的点分类名同样需要重命名,例如通过反射访问R类.
+        if (value instanceof String) {
+            String mapped = mapR((String) value, '.');
+            if (mapped != null) {
+                return mapped;
+            }
+        }
+        return super.mapValue(value);
+    }
+
+    /**
+     * @param name      类名
+     * @param separator 包名分隔符
+     * @return 重命名后的类名, 不需要重命名时返回null.
+     */
+    @Nullable
+    private String mapR(@NonNull String name, char separator) {
+        int index = name.lastIndexOf(separator);
+        if (index <= 0 || index + 1 >= name.length() || name.charAt(index + 1) != 'R') {
+            return null;
+        }
+        int end = index + 2;
+        if (end != name.length() && name.charAt(end) != '$') {
+            return null;
+        }
+        String packageName = name.substring(0, index);
+        if (separator != '/') {
+            packageName = packageName.replace(separator, '/');
+        }
+        String appR = packages.get(packageName);
+        if (appR == null) {
+            return null;
+        }
+        if (separator != '/') {
+            appR = appR.replace('/', separator);
+        }
+        return appR + name.substring(end);
+    }
+
+    /**
+     * 对单个条目应用重命名规则,常量池中未引用被重命名的R类的class及非class文件原样返回.
+     *
+     * @param archivePath
+     * @param data
+     * @return
+     */
+    @NonNull
+    public byte[] relocate(@NonNull String archivePath, @NonNull byte[] data) {
+        if (packages.isEmpty() || !archivePath.endsWith(DOT_CLASS) || !scanner.references(data)) {
+            return data;
+        }
+        ClassReader reader = new ClassReader(data);
+        ClassWriter writer = new ClassWriter(0);
+        reader.accept(new ClassRemapper(writer, this), 0);
+        return writer.toByteArray();
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2015 House365. All rights reserved.
+ */
+
+package com.house365.build.transform;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.android.annotations.NonNull;
+import com.android.utils.FileUtils;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.house365.build.util.InputFileCache;
+import com.house365.build.util.PackagingActionCache;
+import com.house365.build.util.ZipEntryFilterUtil;
+
+/**
+ * 以内容寻址的方式缓存单个AAR的classes.jar重命名R引用并过滤后的结果,位于Gradle用户目录下,在不同工程及构建间共享.
+ * <p>
+ * key由输入jar内容的哈希、重命名规则及packagingOptions组成,同一版本的AAR只需处理一次.
+ * jar内容的哈希通过{@link InputFileCache}缓存,守护进程中未变化的jar只读取central directory,不会重复计算.
+ * 缓存的jar中已丢弃AAR自身的R文件及被排除的条目,跨jar的去重及pickFirst仍由最终合并处理.
+ * 写入时先生成临时文件再移动,多个进程同时写入同一条目时结果相同,不需要加锁.
+ */
+public class RelocatedJarCache {
+
+    private static final String CACHE_DIR = "caches/android-shade/relocated-1";
+
+    private final File cacheDir;
+    private final RClassRemapper remapper;
+    private final PackagingActionCache packagingActions;
+    private final String rulesHash;
+
+    public RelocatedJarCache(@NonNull File gradleUserHome,
+                             @NonNull RClassRemapper remapper,
+                             @NonNull PackagingActionCache packagingActions) {
+        this.cacheDir = new File(gradleUserHome, CACHE_DIR);
+        this.remapper = remapper;
+        this.packagingActions = packagingActions;
+        this.rulesHash = Hashing.sha1().hashString(
+                remapper.getKey() + "\n" + packagingActions.getKey(), StandardCharsets.UTF_8).toString();
+    }
+
+    /**
+     * 获取各jar处理后的结果,未命中的jar在最多parallelism个线程中处理.
+     *
+     * @param jars
+     * @param parallelism
+     * @return 与jars顺序一致的缓存文件, 处理后没有任何条目的jar不包含在内.
+     */
+    @NonNull
+    public List<File> getAll(@NonNull List<File> jars, int parallelism) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, parallelism),
+                new ThreadFactoryBuilder().setNameFormat("shade-relocate-%d").setDaemon(true).build());
+        try {
+            List<Future<File>> futures = new ArrayList<>(jars.size());
+            for (File jar : jars) {
+                futures.add(executor.submit(() -> get(jar)));
+            }
+            List<File> result = new ArrayList<>(jars.size());
+            for (Future<File> future : futures) {
+                File file = future.get();
+                if (file.isFile()) {
+                    result.add(file);
+                }
+            }
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @param jar
+     * @return 缓存文件, 处理后没有任何条目时该文件不存在.
+     */
+    @NonNull
+    public File get(@NonNull File jar) throws IOException {
+        String jarHash = InputFileCache.get().getContentHash(jar);
+        File dir = FileUtils.join(cacheDir, jarHash.substring(0, 2), jarHash.substring(2) + "-" + rulesHash);
+        File cached = new File(dir, "classes.jar");
+        File marker = new File(dir, "done");
+        if (marker.isFile()) {
+            return cached;
+        }
+        FileUtils.mkdirs(dir);
+        File temp = File.createTempFile("classes", ".jar", dir);
+        FileUtils.deleteIfExists(temp);
+        try (IncrementalJarMerger merger = new IncrementalJarMerger()) {
+            IncrementalJarMerger.Sink sink = merger.addSink(temp,
+                    new ZipEntryFilterUtil.PackagingFilter(packagingActions, null),
+                    null, remapper::relocate);
+            merger.addJar(jar, null, archivePath -> ZipEntryFilterUtil.isRClass(archivePath) ? null : sink);
+            merger.commit();
+        }
+        if (temp.isFile()) {
+            move(temp, cached);
+        }
+        Files.touch(marker);
+        return cached;
+    }
+
+    private static void move(@NonNull File from, @NonNull File to) throws IOException {
+        try {
+            java.nio.file.Files.move(from.toPath(), to.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            java.nio.file.Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
@@ -5,17 +5,15 @@
 package com.house365.build.transform;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
+import java.util.List;
 import java.util.Set;
+import java.util.stream.Collectors;
 
 import org.apache.commons.io.FilenameUtils;
-import org.gradle.api.Project;
 import org.gradle.api.artifacts.ArtifactCollection;
-import org.gradle.api.artifacts.Configuration;
 import org.gradle.api.file.FileCollection;
 import org.gradle.api.logging.Logger;
 import org.gradle.api.logging.Logging;
@@ -27,29 +25,22 @@ import com.android.build.api.transform.Format;
 import com.android.build.api.transform.JarInput;
 import com.android.build.api.transform.QualifiedContent.ContentType;
 import com.android.build.api.transform.QualifiedContent.Scope;
+import com.android.build.api.transform.Status;
 import com.android.build.api.transform.Transform;
 import com.android.build.api.transform.TransformException;
 import com.android.build.api.transform.TransformInput;
 import com.android.build.api.transform.TransformInvocation;
 import com.android.build.api.transform.TransformOutputProvider;
-import com.android.build.gradle.LibraryExtension;
 import com.android.build.gradle.internal.InternalScope;
-import com.android.build.gradle.internal.dsl.PackagingOptions;
-import com.android.build.gradle.internal.packaging.ParsedPackagingOptions;
 import com.android.build.gradle.internal.pipeline.TransformManager;
-import com.android.build.gradle.internal.publishing.AndroidArtifacts;
-import com.android.build.gradle.internal.scope.VariantScope;
-import com.android.build.gradle.internal.variant.BaseVariantData;
-import com.android.builder.core.DefaultManifestParser;
-import com.android.builder.packaging.JarMerger;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Sets;
 import com.house365.build.ShadeTaskManager;
+import com.house365.build.ShadeVariant;
+import com.house365.build.gradle.tasks.ShadeClassesTask;
+import com.house365.build.util.InputFileCache;
+import com.house365.build.util.PackagingActionCache;
 import com.house365.build.util.ZipEntryFilterUtil;
-import com.tonicsystems.jarjar.classpath.ClassPath;
-import com.tonicsystems.jarjar.transform.JarTransformer;
-import com.tonicsystems.jarjar.transform.config.RulesFileParser;
-import com.tonicsystems.jarjar.transform.jar.DefaultJarProcessor;
 
 import static com.android.utils.FileUtils.deleteIfExists;
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -62,19 +53,21 @@ import static com.google.common.base.Preconditions.checkNotNull;
  */
 public class ShadeAarClassTransform extends Transform {
     public static final boolean DEBUG = false;
+    private static final String STATE_FILE_NAME = "shade-state.bin";
+    private static final String OUTPUT_COMBINED = "combined";
+    private static final String OUTPUT_R = "r";
+    private static final String OUTPUT_SHADE = "shade";
     private final Logger logger;
-    private LibraryExtension libraryExtension;
     private boolean isLibrary = true;
-    private Project project;
-    private ShadeTaskManager shadeTaskManager;
-    private VariantScope variantScope;
+    private final ShadeTaskManager shadeTaskManager;
 
-
-    public ShadeAarClassTransform(Project project, LibraryExtension LibraryExtension,
-                                  ShadeTaskManager shadeTaskManager) {
+    /**
+     * 不持有Project,执行时所需的输入全部通过{@link ShadeVariant}获取.
+     *
+     * @param shadeTaskManager
+     */
+    public ShadeAarClassTransform(ShadeTaskManager shadeTaskManager) {
         this.shadeTaskManager = shadeTaskManager;
-        this.project = project;
-        this.libraryExtension = LibraryExtension;
         this.logger = Logging.getLogger(ShadeAarClassTransform.class);
     }
 
@@ -92,7 +85,7 @@ public class ShadeAarClassTransform extends Transform {
 
     @Override
     public boolean isIncremental() {
-        return false;
+        return true;
     }
 
     @Override
@@ -116,125 +109,141 @@ public class ShadeAarClassTransform extends Transform {
 
     public void transform(@NonNull TransformInvocation invocation)
             throws TransformException, InterruptedException, IOException {
-        variantScope = shadeTaskManager.getCurrentVariant(invocation);
-        String variantName = variantScope.getFullVariantName();
+        ShadeVariant variant = shadeTaskManager.getCurrentVariant(invocation);
 
         @Nullable TransformOutputProvider outputProvider = invocation.getOutputProvider();
         checkNotNull(outputProvider, "Missing output object for transform " + getName());
 
-        Configuration shadeAarClasspath = project.getConfigurations().maybeCreate(variantName + "ShadeAarClasspath");
-        // 该段代码会导致重复解压缩aar,C:\Users\zhang\.gradle\caches\transforms-1\files-1.1\zxing-android-embedded-0.0.4.aar
-
-        ArtifactCollection classesArtifacts = shadeTaskManager.getShadeArtifactCollection(variantScope, AndroidArtifacts.ArtifactType.CLASSES);
-        ArtifactCollection manifestArtifacts = shadeTaskManager.getShadeArtifactCollection(variantScope, AndroidArtifacts.ArtifactType.MANIFEST);
-
-        FileCollection aarJars = classesArtifacts.getArtifactFiles();
-
-        File jarFile = outputProvider.getContentLocation("combined-temp", getOutputTypes(), getScopes(),
-                Format.JAR);
-        File rJarFile = outputProvider.getContentLocation("r", getOutputTypes(), getScopes(),
-                Format.JAR);
+        FileCollection aarJars = variant.getClassesArtifacts().getArtifactFiles();
+        FileCollection jars = variant.getShadeJars();
 
         Collection<TransformInput> transformInputs = invocation.getInputs();
 
-        PackagingOptions packagingOptions = libraryExtension.getPackagingOptions();
-        ParsedPackagingOptions parsedPackagingOptions = new ParsedPackagingOptions(packagingOptions);
+        PackagingActionCache packagingActions = variant.getPackagingActions();
+        RClassRemapper remapper = variant.getRemapper();
 
-        jarMerger(jarFile, transformInputs, aarJars,
-                new ZipEntryFilterUtil.JarWhitoutRFilter(parsedPackagingOptions, null));
-        jarMerger(rJarFile, transformInputs, null,
-                new ZipEntryFilterUtil.JarRFilter(parsedPackagingOptions, null));
+        // 重命名规则或packagingOptions发生变化时所有条目都会受到影响,需完整构建.
+        File stateFile = new File(invocation.getContext().getTemporaryDir(), STATE_FILE_NAME);
+        String configKey = remapper.getKey() + "\n" + packagingActions.getKey();
+        ShadeMergeState previous = invocation.isIncremental() ? ShadeMergeState.load(stateFile) : null;
+        if (previous != null && !configKey.equals(previous.getConfigKey())) {
+            previous = null;
+        }
+        ShadeMergeState state = new ShadeMergeState(configKey);
 
+        File rJarFile = outputProvider.getContentLocation("r", getOutputTypes(), getScopes(),
+                Format.JAR);
         File outJar = outputProvider.getContentLocation("combined", getOutputTypes(), getScopes(),
                 Format.JAR);
+        File distJarFile = outputProvider.getContentLocation(FilenameUtils.getBaseName("shade.jar"), getOutputTypes(), getScopes(), Format.JAR);
 
-        // JarJar
-        jarjar(variantScope.getVariantData(), manifestArtifacts, jarFile, outJar);
-        if (jarFile.exists()) {
-            Files.delete(jarFile.toPath());
+        // 合并成功后才写入新的状态,中途失败时下一次执行完整构建.
+        deleteIfExists(stateFile);
+        boolean fullBuild = previous == null;
+        if (fullBuild) {
+            outputProvider.deleteAll();
         }
 
-        FileCollection jars = ShadeTaskManager.getArtifactCollection(project.getConfigurations().getByName(variantName + "ShadeJarClasspath"), variantScope, AndroidArtifacts.ArtifactType.CLASSES).getArtifactFiles();
-        File distJarFile = outputProvider.getContentLocation(FilenameUtils.getBaseName("shade.jar"), getOutputTypes(), getScopes(), Format.JAR);
-        JarMerger jarMerger = new JarMerger(distJarFile.toPath(), new ZipEntryFilterUtil.PackagingFilter(parsedPackagingOptions, null));
+        // 在读取输入的同时对每个类应用重命名规则,直接写入combined.jar,不再生成中间文件.
+        IncrementalJarMerger.EntryTransformer relocation = remapper::relocate;
+
+        int parallelism = variant.getMergeThreads();
+        IncrementalJarMerger classMerger = new IncrementalJarMerger(parallelism);
+        IncrementalJarMerger.Sink classSink = classMerger.addSink(outJar,
+                new ZipEntryFilterUtil.PackagingFilter(packagingActions, null),
+                fullBuild ? null : previous.getOutput(OUTPUT_COMBINED), relocation);
+        IncrementalJarMerger.Sink rSink = classMerger.addSink(rJarFile,
+                new ZipEntryFilterUtil.PackagingFilter(packagingActions, null),
+                fullBuild ? null : previous.getOutput(OUTPUT_R), null);
+        // 被shade的依赖已由可缓存的ShadeClassesTask处理,此处只需原样复制其输出.
+        ShadeClassesTask classesTask = variant.getClassesTask();
         try {
-            for (File jar : jars) {
-                jarMerger.addJar(jar.toPath());
+            // 工程中的R文件写入r.jar,其余重命名R引用后写入combined.jar,被合并的AAR中的R文件直接丢弃.
+            jarMerger(classMerger, transformInputs, classesTask == null ? aarJars : null,
+                    archivePath -> ZipEntryFilterUtil.isRClass(archivePath) ? rSink : classSink,
+                    archivePath -> ZipEntryFilterUtil.isRClass(archivePath) ? null : classSink);
+            if (classesTask != null && classesTask.getClassesJar().isFile()) {
+                classMerger.addProcessedJar(classesTask.getClassesJar(), null, archivePath -> classSink);
             }
-        } catch (FileNotFoundException e) {
-            throw new TransformException(e);
-        } catch (IOException e) {
-            throw new TransformException(e);
+            classMerger.commit();
         } finally {
-            jarMerger.close();
+            classMerger.close();
         }
-    }
 
-
-    public static void jarMerger(File jarFile, Collection<TransformInput> inputs,
-                                 FileCollection needCombineJars,
-                                 ZipEntryFilterUtil.PackagingFilter filter) throws IOException, TransformException {
-        JarMerger jarMerger = new JarMerger(jarFile.toPath(), filter);
+        IncrementalJarMerger shadeMerger = new IncrementalJarMerger(parallelism);
+        IncrementalJarMerger.Sink shadeSink = shadeMerger.addSink(distJarFile,
+                new ZipEntryFilterUtil.PackagingFilter(packagingActions, null),
+                fullBuild ? null : previous.getOutput(OUTPUT_SHADE), null);
         try {
+            if (classesTask == null) {
+                jarMerger(shadeMerger, null, jars, null, archivePath -> shadeSink);
+            } else if (classesTask.getShadeJar().isFile()) {
+                shadeMerger.addProcessedJar(classesTask.getShadeJar(), null, archivePath -> shadeSink);
+            }
+            shadeMerger.commit();
+        } finally {
+            shadeMerger.close();
+        }
+
+        state.putOutput(OUTPUT_COMBINED, classSink.getState());
+        state.putOutput(OUTPUT_R, rSink.getState());
+        state.putOutput(OUTPUT_SHADE, shadeSink.getState());
+        state.save(stateFile);
+        logger.info("{}: {}", invocation.getContext().getPath(), InputFileCache.get());
+    }
+
+    /**
+     * 遍历所有输入,每个输入只读取一次,由router决定条目的去向.
+     *
+     * @param jarMerger
+     * @param inputs          Transform的输入,通过{@link Status}判断是否变化.
+     * @param needCombineJars 其他需要合并的jar,通过文件指纹判断是否变化.
+     * @param inputRouter
+     * @param jarRouter
+     */
+    public static void jarMerger(IncrementalJarMerger jarMerger,
+                                 @Nullable Collection<TransformInput> inputs,
+                                 @Nullable FileCollection needCombineJars,
+                                 @Nullable IncrementalJarMerger.EntryRouter inputRouter,
+                                 @NonNull IncrementalJarMerger.EntryRouter jarRouter) throws IOException {
+        if (inputs != null) {
             for (TransformInput input : inputs) {
                 for (JarInput jarInput : input.getJarInputs()) {
-                    filter.reset(jarInput.getFile());
-                    jarMerger.addJar(jarInput.getFile().toPath());
+                    if (jarInput.getStatus() == Status.REMOVED) {
+                        continue;
+                    }
+                    jarMerger.addJar(jarInput.getFile(), jarInput.getStatus(), inputRouter);
                 }
 
                 for (DirectoryInput directoryInput : input.getDirectoryInputs()) {
-                    filter.reset(directoryInput.getFile());
-                    jarMerger.addDirectory(directoryInput.getFile().toPath());
+                    jarMerger.addDirectory(directoryInput.getFile(), directoryInput.getChangedFiles(), inputRouter);
                 }
             }
-            if (needCombineJars != null)
-                for (File file : needCombineJars) {
-                    System.out.println("combine jar: " + file);
-                    filter.reset(file);
-                    jarMerger.addJar(file.toPath());
-                }
-        } catch (FileNotFoundException e) {
-            throw new TransformException(e);
-        } catch (IOException e) {
-            throw new TransformException(e);
-        } finally {
-            jarMerger.close();
+        }
+        if (needCombineJars != null) {
+            for (File file : needCombineJars) {
+                jarMerger.addJar(file, null, jarRouter);
+            }
         }
     }
 
     /**
-     * 重命名被合并的AAR中的R文件引用.
+     * 并行读取被合并的AAR的包名,结果与manifests的顺序一致.
      *
-     * @param variantData
      * @param manifests
-     * @param inputJar
-     * @param outputJar
+     * @return
      */
-    public void jarjar(BaseVariantData variantData,
-                       ArtifactCollection manifests,
-                       File inputJar,
-                       File outputJar) throws IOException {
-        StringBuilder stringBuilder = new StringBuilder();
-        String appPackageName = new DefaultManifestParser(variantData.getVariantConfiguration().getMainManifest()).getPackage();
-        for (File manifestFile : manifests.getArtifactFiles()) {
-            String manifestPackage = new DefaultManifestParser(manifestFile).getPackage();
-            System.out.println("Library PackageName:" + manifestPackage);
-
-            String rule1 = "rule " + manifestPackage + ".R      " + appPackageName + ".R";
-            System.out.println("   " + rule1);
-            String rule2 = "rule " + manifestPackage + ".R$*    " + appPackageName + ".R$@1";
-            System.out.println("   " + rule2);
-            stringBuilder.append(rule2).append("\r\n");
-            stringBuilder.append(rule1).append("\r\n");
+    @NonNull
+    public static List<String> getLibraryPackages(ArtifactCollection manifests) {
+        List<File> manifestFiles = new ArrayList<>(manifests.getArtifactFiles().getFiles());
+        InputFileCache cache = InputFileCache.get();
+        List<String> packages = manifestFiles.parallelStream()
+                .map(cache::getPackageName)
+                .collect(Collectors.toList());
+        Logger logger = Logging.getLogger(ShadeAarClassTransform.class);
+        if (logger.isInfoEnabled()) {
+            logger.info("Library packages: {}", packages);
         }
-        com.android.utils.FileUtils.mkdirs(outputJar.getParentFile());
-        deleteIfExists(outputJar);
-        outputJar.createNewFile();
-        DefaultJarProcessor processor = new DefaultJarProcessor();
-        RulesFileParser.parse(processor, stringBuilder.toString());
-        JarTransformer transformer = new JarTransformer(outputJar, processor);
-        ClassPath fromClassPath = new ClassPath(project.getRootDir(), Collections.singleton(inputJar));
-        transformer.transform(fromClassPath);
+        return packages;
     }
 }
-
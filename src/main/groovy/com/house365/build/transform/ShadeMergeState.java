@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2015 House365. All rights reserved.
+ */
+
+package com.house365.build.transform;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.utils.FileUtils;
+
+/**
+ * 记录{@link ShadeAarClassTransform}上一次的合并结果,用于增量构建时判断哪些条目需要重新处理.
+ * <p>
+ * 每个输出jar记录其输入源的指纹以及每个条目来自哪一个输入源.
+ */
+public class ShadeMergeState {
+
+    private static final int VERSION = 1;
+
+    private final String configKey;
+
+    private final Map<String, OutputState> outputs = new LinkedHashMap<>();
+
+    public ShadeMergeState(@NonNull String configKey) {
+        this.configKey = configKey;
+    }
+
+    @NonNull
+    public String getConfigKey() {
+        return configKey;
+    }
+
+    @Nullable
+    public OutputState getOutput(@NonNull String name) {
+        return outputs.get(name);
+    }
+
+    public void putOutput(@NonNull String name, @NonNull OutputState state) {
+        outputs.put(name, state);
+    }
+
+    /**
+     * 计算输入源的指纹,对于目录仅返回固定值,目录中的变更由{@link com.android.build.api.transform.DirectoryInput#getChangedFiles()}提供.
+     *
+     * @param file
+     * @return
+     */
+    @NonNull
+    public static String fingerprint(@NonNull File file) {
+        if (file.isDirectory()) {
+            return "dir";
+        }
+        return file.length() + ":" + file.lastModified();
+    }
+
+    /**
+     * 读取保存的状态,文件不存在或格式不匹配时返回null,此时应进行完整构建.
+     *
+     * @param stateFile
+     * @return
+     */
+    @Nullable
+    public static ShadeMergeState load(@NonNull File stateFile) {
+        if (!stateFile.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(stateFile)))) {
+            if (in.readInt() != VERSION) {
+                return null;
+            }
+            ShadeMergeState state = new ShadeMergeState(in.readUTF());
+            int outputCount = in.readInt();
+            for (int i = 0; i < outputCount; i++) {
+                String name = in.readUTF();
+                OutputState output = new OutputState();
+                int sourceCount = in.readInt();
+                for (int j = 0; j < sourceCount; j++) {
+                    output.sources.put(in.readUTF(), in.readUTF());
+                }
+                int entryCount = in.readInt();
+                for (int j = 0; j < entryCount; j++) {
+                    output.owners.put(in.readUTF(), in.readUTF());
+                }
+                state.putOutput(name, output);
+            }
+            return state;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    public void save(@NonNull File stateFile) throws IOException {
+        FileUtils.mkdirs(stateFile.getParentFile());
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(stateFile)))) {
+            out.writeInt(VERSION);
+            out.writeUTF(configKey);
+            out.writeInt(outputs.size());
+            for (Map.Entry<String, OutputState> entry : outputs.entrySet()) {
+                out.writeUTF(entry.getKey());
+                OutputState output = entry.getValue();
+                out.writeInt(output.sources.size());
+                for (Map.Entry<String, String> source : output.sources.entrySet()) {
+                    out.writeUTF(source.getKey());
+                    out.writeUTF(source.getValue());
+                }
+                out.writeInt(output.owners.size());
+                for (Map.Entry<String, String> owner : output.owners.entrySet()) {
+                    out.writeUTF(owner.getKey());
+                    out.writeUTF(owner.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * 单个输出jar的状态.
+     */
+    public static class OutputState {
+
+        /**
+         * 输入源路径 -> 指纹.
+         */
+        final Map<String, String> sources = new LinkedHashMap<>();
+
+        /**
+         * 条目路径 -> 输入源路径.
+         */
+        final Map<String, String> owners = new LinkedHashMap<>();
+
+        public void addSource(@NonNull File source) {
+            sources.put(source.getAbsolutePath(), fingerprint(source));
+        }
+
+        public void addOwner(@NonNull String archivePath, @NonNull File source) {
+            owners.put(archivePath, source.getAbsolutePath());
+        }
+
+        /**
+         * 输入源与上次构建相比是否未发生变化.
+         */
+        public boolean isSourceUnchanged(@NonNull File source) {
+            return fingerprint(source).equals(sources.get(source.getAbsolutePath()));
+        }
+
+        public boolean isOwnedBy(@NonNull String archivePath, @NonNull File source) {
+            return source.getAbsolutePath().equals(owners.get(archivePath));
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.house365.build.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+
+import com.android.annotations.NonNull;
+
+/**
+ * 快速扫描class文件的常量池,判断其是否引用了指定的类型,不需要经过ASM解析整个class.
+ * <p>
+ * 类型的引用(类、字段及方法描述符、签名)以及作为字符串常量出现的类名最终都保存在CONSTANT_Utf8中,
+ * 因此只需检查所有的CONSTANT_Utf8是否包含目标类型的内部名称(a/b/R)或点分名称(a.b.R).
+ * 无法识别的class文件格式一律视为存在引用.
+ */
+public class ConstantPoolScanner {
+
+    private static final int MAGIC = 0xCAFEBABE;
+
+    private final byte[][] needles;
+
+    /**
+     * @param classNames 需要检查的类型,使用点分名称,例如a.b.R.
+     */
+    public ConstantPoolScanner(@NonNull Collection<String> classNames) {
+        needles = new byte[classNames.size() * 2][];
+        int i = 0;
+        for (String className : classNames) {
+            needles[i++] = className.replace('.', '/').getBytes(StandardCharsets.UTF_8);
+            needles[i++] = className.getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * @param classData class文件内容
+     * @return 常量池中存在对任一类型(包括其内部类)的引用时返回true.
+     */
+    public boolean references(@NonNull byte[] classData) {
+        if (needles.length == 0) {
+            return false;
+        }
+        if (classData.length < 10 || readInt(classData, 0) != MAGIC) {
+            return true;
+        }
+        int count = readUnsignedShort(classData, 8);
+        int offset = 10;
+        try {
+            for (int i = 1; i < count; i++) {
+                int tag = classData[offset] & 0xFF;
+                switch (tag) {
+                    case 1: // Utf8
+                        int length = readUnsignedShort(classData, offset + 1);
+                        if (contains(classData, offset + 3, length)) {
+                            return true;
+                        }
+                        offset += 3 + length;
+                        break;
+                    case 7: // Class
+                    case 8: // String
+                    case 16: // MethodType
+                    case 19: // Module
+                    case 20: // Package
+                        offset += 3;
+                        break;
+                    case 15: // MethodHandle
+                        offset += 4;
+                        break;
+                    case 3: // Integer
+                    case 4: // Float
+                    case 9: // Fieldref
+                    case 10: // Methodref
+                    case 11: // InterfaceMethodref
+                    case 12: // NameAndType
+                    case 17: // Dynamic
+                    case 18: // InvokeDynamic
+                        offset += 5;
+                        break;
+                    case 5: // Long
+                    case 6: // Double
+                        offset += 9;
+                        i++;
+                        break;
+                    default:
+                        return true;
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            return true;
+        }
+        return false;
+    }
+
+    private boolean contains(@NonNull byte[] data, int start, int length) {
+        int end = start + length;
+        for (byte[] needle : needles) {
+            int last = end - needle.length;
+            outer:
+            for (int i = start; i <= last; i++) {
+                for (int j = 0; j < needle.length; j++) {
+                    if (data[i + j] != needle[j]) {
+                        continue outer;
+                    }
+                }
+                // 排除a/b/Rx这类仅前缀相同的名称.
+                int next = i + needle.length;
+                if (next == end || !isIdentifierPart(data[next])) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean isIdentifierPart(byte b) {
+        return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9')
+                || b == '_' || b < 0;
+    }
+
+    private static int readUnsignedShort(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16)
+                | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+    }
+}
@@ -0,0 +1,196 @@
+package com.house365.build.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import com.android.annotations.NonNull;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+/**
+ * 缓存从输入文件中读取的结果(jar内容的哈希、manifest中的包名),在同一个Gradle守护进程的多次构建之间共享.
+ * <p>
+ * key由文件的绝对路径、大小及修改时间组成,文件发生变化后旧的结果不会再被命中,最终被LRU淘汰.
+ * 修改时间精度不足时原地重写的文件可能与旧文件的key相同,因此jar内容的哈希还需与central directory的摘要一致才会命中.
+ * 条目数量有上限,超出时淘汰最久未访问的条目.可在多个线程中同时使用,未命中时的读取在锁外进行.
+ */
+public class InputFileCache {
+
+    private static final int MAX_ENTRIES = 4096;
+
+    private static final InputFileCache INSTANCE = new InputFileCache(MAX_ENTRIES);
+
+    private final Map<Key, Object> entries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    InputFileCache(int maxEntries) {
+        this.entries = new LinkedHashMap<Key, Object>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Object> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @return 当前守护进程中共享的实例.
+     */
+    @NonNull
+    public static InputFileCache get() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param manifest AndroidManifest.xml
+     * @return manifest中的包名.
+     */
+    @NonNull
+    public String getPackageName(@NonNull File manifest) {
+        return get(Kind.PACKAGE_NAME, manifest, cached -> true, () -> ManifestPackageReader.read(manifest));
+    }
+
+    /**
+     * 获取jar内容的SHA-1,可作为内容寻址的缓存key.
+     * <p>
+     * 每次调用都读取central directory(不解压任何条目)计算各条目名称、CRC及大小的摘要,
+     * 摘要与缓存时不同(例如本地工程原地重新生成的classes.jar)时重新计算整个文件的哈希.
+     *
+     * @param jar
+     * @return jar内容的SHA-1.
+     */
+    @NonNull
+    public String getContentHash(@NonNull File jar) {
+        String directoryHash = hashCentralDirectory(jar);
+        ContentHash hash = get(Kind.CONTENT_HASH, jar,
+                cached -> cached.directoryHash.equals(directoryHash),
+                () -> {
+                    try {
+                        return new ContentHash(directoryHash, Files.asByteSource(jar).hash(Hashing.sha1()).toString());
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+        return hash.contentHash;
+    }
+
+    @NonNull
+    private static String hashCentralDirectory(@NonNull File jar) {
+        Hasher hasher = Hashing.sha1().newHasher();
+        try (ZipFile zipFile = new ZipFile(jar)) {
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                hasher.putString(entry.getName(), StandardCharsets.UTF_8)
+                        .putLong(entry.getCrc())
+                        .putLong(entry.getSize())
+                        .putLong(entry.getCompressedSize());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return hasher.hash().toString();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        int size;
+        synchronized (entries) {
+            size = entries.size();
+        }
+        return "InputFileCache{size=" + size + ", hits=" + hits.get() + ", misses=" + misses.get() + "}";
+    }
+
+    @SuppressWarnings("unchecked")
+    @NonNull
+    private <T> T get(@NonNull Kind kind, @NonNull File file,
+                      @NonNull Predicate<T> valid, @NonNull Supplier<T> loader) {
+        Key key = new Key(kind, file);
+        synchronized (entries) {
+            T value = (T) entries.get(key);
+            if (value != null && valid.test(value)) {
+                hits.incrementAndGet();
+                return value;
+            }
+        }
+        misses.incrementAndGet();
+        T value = loader.get();
+        synchronized (entries) {
+            entries.put(key, value);
+        }
+        return value;
+    }
+
+    private enum Kind {
+        PACKAGE_NAME,
+        CONTENT_HASH
+    }
+
+    private static final class ContentHash {
+        private final String directoryHash;
+        private final String contentHash;
+
+        ContentHash(@NonNull String directoryHash, @NonNull String contentHash) {
+            this.directoryHash = directoryHash;
+            this.contentHash = contentHash;
+        }
+    }
+
+    private static final class Key {
+        private final Kind kind;
+        private final String path;
+        private final long length;
+        private final long lastModified;
+
+        Key(@NonNull Kind kind, @NonNull File file) {
+            this.kind = kind;
+            this.path = file.getAbsolutePath();
+            this.length = file.length();
+            this.lastModified = file.lastModified();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return length == key.length
+                    && lastModified == key.lastModified
+                    && kind == key.kind
+                    && path.equals(key.path);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = kind.hashCode();
+            result = 31 * result + path.hashCode();
+            result = 31 * result + Long.hashCode(length);
+            result = 31 * result + Long.hashCode(lastModified);
+            return result;
+        }
+    }
+}
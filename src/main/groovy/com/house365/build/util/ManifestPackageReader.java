@@ -0,0 +1,71 @@
+package com.house365.build.util;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import com.android.annotations.NonNull;
+
+/**
+ * 以流的方式读取AndroidManifest.xml中的包名,读取到根元素manifest后立即停止,不解析整个文档.
+ * <p>
+ * 可在多个线程中同时使用.
+ */
+public class ManifestPackageReader {
+
+    private static final String MANIFEST = "manifest";
+    private static final String PACKAGE = "package";
+
+    private static final XMLInputFactory FACTORY = createFactory();
+
+    private ManifestPackageReader() {
+    }
+
+    private static XMLInputFactory createFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, false);
+        return factory;
+    }
+
+    /**
+     * @param manifest AndroidManifest.xml
+     * @return 根元素manifest的package属性.
+     */
+    @NonNull
+    public static String read(@NonNull File manifest) {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(manifest))) {
+            XMLStreamReader reader = FACTORY.createXMLStreamReader(in);
+            try {
+                while (reader.hasNext()) {
+                    if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+                        if (!MANIFEST.equals(reader.getLocalName())) {
+                            break;
+                        }
+                        String packageName = reader.getAttributeValue(null, PACKAGE);
+                        if (packageName == null || packageName.isEmpty()) {
+                            break;
+                        }
+                        return packageName;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (XMLStreamException e) {
+            throw new IllegalStateException("Failed to parse " + manifest, e);
+        }
+        throw new IllegalStateException("Missing package attribute in " + manifest);
+    }
+}
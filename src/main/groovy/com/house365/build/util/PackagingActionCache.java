@@ -0,0 +1,236 @@
+package com.house365.build.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.android.annotations.NonNull;
+import com.android.build.gradle.internal.dsl.PackagingOptions;
+import com.android.build.gradle.internal.packaging.PackagingFileAction;
+import com.android.build.gradle.internal.packaging.ParsedPackagingOptions;
+
+/**
+ * 缓存packagingOptions对每个条目的处理结果,同一份packagingOptions配置的所有过滤器共享一个实例.
+ * <p>
+ * 合并后的packagingOptions总是包含Android Gradle Plugin的默认排除规则,因此不能以规则是否为空作为快速路径.
+ * 每条glob预先提取其字面部分(路径前缀、中间的目录片段、最后一级的前缀及后缀),作为匹配的必要条件;
+ * 不满足任一规则必要条件的条目(绝大多数class文件)直接返回{@link PackagingFileAction#NONE},不进行glob匹配也不进入缓存,
+ * 其余条目(资源文件,在多个jar及多个变体间大量重复)按路径缓存.可在多个线程中同时使用.
+ */
+public class PackagingActionCache {
+
+    private final ParsedPackagingOptions packagingOptions;
+    private final String key;
+    private final Set<String> excludes;
+    private final Set<String> pickFirsts;
+    private final Set<String> merges;
+    private final List<GlobHint> hints = new ArrayList<>();
+    private final ConcurrentHashMap<String, PackagingFileAction> actions = new ConcurrentHashMap<>();
+
+    public PackagingActionCache(@NonNull PackagingOptions packagingOptions) {
+        this.packagingOptions = new ParsedPackagingOptions(packagingOptions);
+        this.key = getKey(packagingOptions);
+        this.excludes = new TreeSet<>(packagingOptions.getExcludes());
+        this.pickFirsts = new TreeSet<>(packagingOptions.getPickFirsts());
+        this.merges = new TreeSet<>(packagingOptions.getMerges());
+        for (Set<String> globs : Arrays.asList(excludes, pickFirsts, merges)) {
+            for (String glob : globs) {
+                hints.add(GlobHint.parse(glob));
+            }
+        }
+    }
+
+    /**
+     * 生成用于区分packagingOptions配置的key.
+     *
+     * @param packagingOptions
+     * @return
+     */
+    @NonNull
+    public static String getKey(@NonNull PackagingOptions packagingOptions) {
+        return "excludes=" + new TreeSet<>(packagingOptions.getExcludes())
+                + ";pickFirsts=" + new TreeSet<>(packagingOptions.getPickFirsts())
+                + ";merges=" + new TreeSet<>(packagingOptions.getMerges());
+    }
+
+    /**
+     * @return 创建该实例时packagingOptions配置的key.
+     */
+    @NonNull
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * 根据规则重新创建packagingOptions,用于在Worker中重建该缓存.
+     *
+     * @return
+     */
+    @NonNull
+    public static PackagingActionCache create(@NonNull Set<String> excludes,
+                                              @NonNull Set<String> pickFirsts,
+                                              @NonNull Set<String> merges) {
+        PackagingOptions packagingOptions = new PackagingOptions();
+        packagingOptions.setExcludes(excludes);
+        packagingOptions.setPickFirsts(pickFirsts);
+        packagingOptions.setMerges(merges);
+        return new PackagingActionCache(packagingOptions);
+    }
+
+    @NonNull
+    public Set<String> getExcludes() {
+        return excludes;
+    }
+
+    @NonNull
+    public Set<String> getPickFirsts() {
+        return pickFirsts;
+    }
+
+    @NonNull
+    public Set<String> getMerges() {
+        return merges;
+    }
+
+    @NonNull
+    public PackagingFileAction getAction(@NonNull String archivePath) {
+        if (!mayMatch(archivePath)) {
+            return PackagingFileAction.NONE;
+        }
+        return actions.computeIfAbsent(archivePath, packagingOptions::getAction);
+    }
+
+    private boolean mayMatch(@NonNull String archivePath) {
+        int slash = archivePath.lastIndexOf('/');
+        for (GlobHint hint : hints) {
+            if (hint.mayMatch(archivePath, slash + 1)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * glob的字面部分,条目路径(以/开头)满足所有条件时才可能与该glob匹配.
+     * <p>
+     * 与{@link ParsedPackagingOptions}一致,不以/或*开头的glob视为以/开头.
+     * 包含[]、{}或转义字符的glob不做分析,视为可能匹配任何路径.
+     */
+    static final class GlobHint {
+        private static final GlobHint ANY = new GlobHint("", new String[0], "", "");
+
+        /**
+         * 路径前缀(不含开头的/).
+         */
+        private final String prefix;
+        /**
+         * 路径中必须包含的片段,以/开头.
+         */
+        private final String[] fragments;
+        private final String namePrefix;
+        private final String nameSuffix;
+
+        private GlobHint(String prefix, String[] fragments, String namePrefix, String nameSuffix) {
+            this.prefix = prefix;
+            this.fragments = fragments;
+            this.namePrefix = namePrefix;
+            this.nameSuffix = nameSuffix;
+        }
+
+        @NonNull
+        static GlobHint parse(@NonNull String glob) {
+            if (glob.indexOf('[') >= 0 || glob.indexOf('{') >= 0 || glob.indexOf('\\') >= 0) {
+                return ANY;
+            }
+            String pattern = glob.startsWith("/") || glob.startsWith("*") ? glob : "/" + glob;
+            String prefix = literalPrefix(pattern);
+            if (prefix.startsWith("/")) {
+                prefix = prefix.substring(1);
+            }
+            String[] segments = pattern.split("/", -1);
+            List<String> fragments = new ArrayList<>();
+            // 第一段为空(以/开头)或不在/之后,最后一段单独处理.
+            for (int i = 1; i < segments.length - 1; i++) {
+                String segment = segments[i];
+                if (segment.contains("**")) {
+                    continue;
+                }
+                if (!hasWildcard(segment)) {
+                    fragments.add("/" + segment + "/");
+                    continue;
+                }
+                String head = literalPrefix(segment);
+                if (!head.isEmpty()) {
+                    fragments.add("/" + head);
+                }
+                String tail = literalSuffix(segment);
+                if (!tail.isEmpty()) {
+                    fragments.add(tail + "/");
+                }
+            }
+            String name = segments[segments.length - 1];
+            String namePrefix = "";
+            String nameSuffix = "";
+            if (segments.length > 1 && !name.contains("**")) {
+                if (hasWildcard(name)) {
+                    namePrefix = literalPrefix(name);
+                    nameSuffix = literalSuffix(name);
+                } else {
+                    namePrefix = name;
+                    nameSuffix = name;
+                }
+            }
+            return new GlobHint(prefix, fragments.toArray(new String[0]), namePrefix, nameSuffix);
+        }
+
+        /**
+         * @param archivePath 条目路径,不以/开头
+         * @param nameStart   最后一级名称的起始位置
+         */
+        boolean mayMatch(@NonNull String archivePath, int nameStart) {
+            if (!archivePath.startsWith(prefix)
+                    || archivePath.length() - nameStart < Math.max(namePrefix.length(), nameSuffix.length())
+                    || !archivePath.startsWith(namePrefix, nameStart)
+                    || !archivePath.endsWith(nameSuffix)) {
+                return false;
+            }
+            for (String fragment : fragments) {
+                // 条目路径省略了开头的/.
+                if (!archivePath.contains(fragment)
+                        && !archivePath.regionMatches(0, fragment, 1, fragment.length() - 1)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static boolean hasWildcard(@NonNull String text) {
+            return text.indexOf('*') >= 0 || text.indexOf('?') >= 0;
+        }
+
+        @NonNull
+        private static String literalPrefix(@NonNull String text) {
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (c == '*' || c == '?') {
+                    return text.substring(0, i);
+                }
+            }
+            return text;
+        }
+
+        @NonNull
+        private static String literalSuffix(@NonNull String text) {
+            for (int i = text.length() - 1; i >= 0; i--) {
+                char c = text.charAt(i);
+                if (c == '*' || c == '?') {
+                    return text.substring(i + 1);
+                }
+            }
+            return text;
+        }
+    }
+}
@@ -1,21 +1,20 @@
 package com.house365.build.util;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
-import java.util.regex.Pattern;
+import java.util.Map;
 
 import org.gradle.api.logging.Logger;
 import org.gradle.api.logging.Logging;
 
 import com.android.annotations.NonNull;
 import com.android.build.gradle.internal.packaging.PackagingFileAction;
-import com.android.build.gradle.internal.packaging.ParsedPackagingOptions;
-import com.android.builder.packaging.DuplicateFileException;
 import com.android.builder.packaging.ZipAbortException;
 import com.android.builder.packaging.ZipEntryFilter;
-import com.google.common.collect.Lists;
 
 import static com.android.SdkConstants.DOT_CLASS;
 
@@ -25,44 +24,41 @@ import static com.android.SdkConstants.DOT_CLASS;
 public class ZipEntryFilterUtil {
 
     private static final Logger mLogger = Logging.getLogger(ZipEntryFilterUtil.class);
-    private static final Pattern pattern = Pattern.compile("META-INF/MANIFEST.MF");
+    private static final String MANIFEST_PATH = "META-INF/MANIFEST.MF";
+    private static final String R_CLASS = "R" + DOT_CLASS;
 
-    public static final class JarWhitoutRFilter extends PackagingFilter {
-
-        public JarWhitoutRFilter(ParsedPackagingOptions packagingOptions,
-                                 ZipEntryFilter parentFilter) {
-            super(packagingOptions, parentFilter);
+    /**
+     * 判断条目是否为R文件(R.class或R$*.class),仅检查最后一级路径,不编译正则也不产生新对象.
+     *
+     * @param archivePath
+     * @return
+     */
+    public static boolean isRClass(@NonNull String archivePath) {
+        if (!isClass(archivePath)) {
+            return false;
         }
-
-        @Override
-        public boolean checkEntry(String archivePath) throws ZipAbortException {
-            return ZipEntryFilterUtil.checkEntry(ZipEntryFilterUtil.checkWithoutR(), archivePath) &&
-                    super.checkEntry(archivePath);
+        int nameStart = archivePath.lastIndexOf('/') + 1;
+        if (nameStart == 0 || !archivePath.startsWith("R", nameStart)) {
+            return false;
         }
+        return archivePath.length() - nameStart == R_CLASS.length()
+                || archivePath.charAt(nameStart + 1) == '$';
     }
 
-    public static final class JarRFilter extends PackagingFilter {
-
-        public JarRFilter(ParsedPackagingOptions packagingOptions, ZipEntryFilter parentFilter) {
-            super(packagingOptions, parentFilter);
-        }
-
-        @Override
-        public boolean checkEntry(String archivePath) throws ZipAbortException {
-            return !ZipEntryFilterUtil.checkEntry(ZipEntryFilterUtil.checkWithoutR(), archivePath) &&
-                    super.checkEntry(archivePath);
-        }
+    /**
+     * @param archivePath
+     * @return 条目是否为META-INF/MANIFEST.MF
+     */
+    public static boolean isManifest(@NonNull String archivePath) {
+        return MANIFEST_PATH.equals(archivePath);
     }
 
-    private static boolean checkEntry(
-            @NonNull List<Pattern> patterns,
-            @NonNull String name) {
-        for (Pattern pattern : patterns) {
-            if (pattern.matcher(name).matches()) {
-                return false;
-            }
-        }
-        return true;
+    /**
+     * @param archivePath
+     * @return 条目是否为class文件
+     */
+    public static boolean isClass(@NonNull String archivePath) {
+        return archivePath.endsWith(DOT_CLASS);
     }
 
     public static class PackagingFilter extends DuplicateZipFilter {
@@ -71,9 +67,9 @@ public class ZipEntryFilterUtil {
         @NonNull
         private ZipEntryFilter parentFilter;
 
-        private ParsedPackagingOptions packagingOptions;
+        private PackagingActionCache packagingOptions;
 
-        public PackagingFilter(ParsedPackagingOptions packagingOptions,
+        public PackagingFilter(PackagingActionCache packagingOptions,
                                ZipEntryFilter parentFilter) {
             this.packagingOptions = packagingOptions;
             this.parentFilter = parentFilter;
@@ -90,8 +86,23 @@ public class ZipEntryFilterUtil {
         @Override
         public boolean checkEntry(@NonNull String archivePath)
                 throws ZipAbortException {
+            return checkEntry(archivePath, UNKNOWN, UNKNOWN);
+        }
+
+        /**
+         * 与{@link #checkEntry(String)}相同,同时提供条目内容的CRC及大小,内容相同的重复条目将被静默丢弃.
+         *
+         * @param archivePath the archive file path of the entry
+         * @param crc         CRC32 of the entry content
+         * @param size        uncompressed size of the entry
+         * @return true if the archive entry satisfies the filter, false otherwise.
+         * @throws ZipAbortException
+         */
+        @Override
+        public boolean checkEntry(@NonNull String archivePath, long crc, long size)
+                throws ZipAbortException {
 
-            if (pattern.matcher(archivePath).matches()) {
+            if (isManifest(archivePath)) {
                 return false;
             }
 
@@ -106,13 +117,24 @@ public class ZipEntryFilterUtil {
                         return false;
                 case MERGE:
                 case NONE:
-                    return super.checkEntry(archivePath) &&
+                    return super.checkEntry(archivePath, crc, size) &&
                             (parentFilter != null ? parentFilter.checkEntry(archivePath) : true);
                 default:
                     throw new RuntimeException("Unhandled action " + action);
             }
         }
 
+        /**
+         * 不依赖已处理条目的检查,仅根据路径判断条目是否会被排除,可在多个线程中同时调用.
+         *
+         * @param archivePath the archive file path of the entry
+         * @return true if the archive entry is always excluded.
+         */
+        public boolean isExcluded(@NonNull String archivePath) {
+            return isManifest(archivePath)
+                    || getPackagingAction(archivePath) == PackagingFileAction.EXCLUDE;
+        }
+
         /**
          * Determine the user's intention for a particular archive entry.
          *
@@ -131,87 +153,207 @@ public class ZipEntryFilterUtil {
 
     /**
      * Filter to detect duplicate entries
+     * <p>
+     * 条目路径拆分为目录及文件名,二者分别在{@link StringTable}中只保存一份并以序号表示(同名文件如R.class在各目录间共享),
+     * 条目以(目录序号,文件名序号)为key保存在开放寻址的基本类型哈希表中.查找时直接对路径的区间计算哈希并比较,
+     * 不创建子串及装箱对象,只有新的目录或文件名才会保存一份字符串.
+     * 条目的来源以序号表示,同一输入多次reset时复用同一序号;来源、CRC及大小保存在基本类型数组中.
+     * 内容相同的重复条目直接丢弃,仅内容不同的重复条目输出警告.
      */
     public static class DuplicateZipFilter implements ZipEntryFilter {
-        private final HashMap<String, File> mAddedFiles = new HashMap<String, File>();
+        public static final long UNKNOWN = -1;
 
-        private File mInputFile;
+        private final List<File> mSources = new ArrayList<>();
+        private final Map<File, Integer> mSourceIds = new HashMap<>();
+
+        private final StringTable mStrings = new StringTable();
+
+        /**
+         * 开放寻址表,保存条目序号+1,0表示空位.
+         */
+        private int[] mSlots = new int[512];
+        private long[] mEntryKeys = new long[256];
+        private int[] mEntrySources = new int[256];
+        private long[] mEntryCrcs = new long[256];
+        private long[] mEntrySizes = new long[256];
+        private int mEntryCount;
+
+        private int mInputId = -1;
 
         public void reset(File inputFile) {
-            mInputFile = inputFile;
+            Integer id = mSourceIds.get(inputFile);
+            if (id == null) {
+                id = mSources.size();
+                mSources.add(inputFile);
+                mSourceIds.put(inputFile, id);
+            }
+            mInputId = id;
         }
 
         @Override
         public boolean checkEntry(String archivePath) throws ZipAbortException {
-            mLogger.info("=> %s", archivePath);
-            File duplicate = checkFileForDuplicate(archivePath);
-            if (duplicate != null) {
-                // we have a duplicate but it might be the same source file, in this case,
-                // we just ignore the duplicate, and of course, we don't add it again.
-                File potentialDuplicate = mInputFile;
-                if (!duplicate.getAbsolutePath().equals(mInputFile.getAbsolutePath())) {
-                    try {
-                        throw new DuplicateFileException(archivePath, duplicate, mInputFile);
-                    } catch (DuplicateFileException e) {
-                        e.printStackTrace();
-                    }
+            return checkEntry(archivePath, UNKNOWN, UNKNOWN);
+        }
+
+        public boolean checkEntry(String archivePath, long crc, long size) throws ZipAbortException {
+            if (mLogger.isInfoEnabled()) {
+                mLogger.info("=> {}", archivePath);
+            }
+            int slash = archivePath.lastIndexOf('/') + 1;
+            int directory = mStrings.find(archivePath, 0, slash);
+            int name = mStrings.find(archivePath, slash, archivePath.length());
+            int duplicate = directory < 0 || name < 0 ? -1 : findEntry(key(directory, name));
+            if (duplicate >= 0) {
+                // we have a duplicate but it might be the same source file or the same content,
+                // in this case, we just ignore the duplicate, and of course, we don't add it again.
+                File source = mSources.get(mEntrySources[duplicate]);
+                File input = mSources.get(mInputId);
+                boolean sameContent = crc != UNKNOWN
+                        && mEntryCrcs[duplicate] == crc
+                        && mEntrySizes[duplicate] == size;
+                if (!sameContent && !source.equals(input)) {
+                    mLogger.warn("Duplicate files copied in APK {}\n\tFile1: {}\n\tFile2: {}",
+                            archivePath, source, input);
                 }
                 return false;
-            } else {
-                mAddedFiles.put(archivePath, mInputFile);
             }
-
+            if (directory < 0) {
+                directory = mStrings.add(archivePath, 0, slash);
+            }
+            if (name < 0) {
+                name = mStrings.add(archivePath, slash, archivePath.length());
+            }
+            addEntry(key(directory, name), crc, size);
             return true;
         }
 
-        /**
-         * Checks if the given path in the APK archive has not already been used and if it has been,
-         * then returns a {@link File} object for the source of the duplicate
-         *
-         * @param archivePath the archive path to test.
-         * @return A File object of either a file at the same location or an archive that contains a
-         * file that was put at the same location.
-         */
-        private File checkFileForDuplicate(String archivePath) {
-            return mAddedFiles.get(archivePath);
+        private static long key(int directory, int name) {
+            return ((long) directory << 32) | (name & 0xFFFFFFFFL);
         }
-    }
 
+        private static int slot(long key, int mask) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32)) & mask;
+        }
+
+        private int findEntry(long key) {
+            int mask = mSlots.length - 1;
+            for (int i = slot(key, mask); ; i = (i + 1) & mask) {
+                int entry = mSlots[i] - 1;
+                if (entry < 0) {
+                    return -1;
+                }
+                if (mEntryKeys[entry] == key) {
+                    return entry;
+                }
+            }
+        }
+
+        private void addEntry(long key, long crc, long size) {
+            if (mEntryCount == mEntrySources.length) {
+                int capacity = mEntryCount * 2;
+                mEntryKeys = Arrays.copyOf(mEntryKeys, capacity);
+                mEntrySources = Arrays.copyOf(mEntrySources, capacity);
+                mEntryCrcs = Arrays.copyOf(mEntryCrcs, capacity);
+                mEntrySizes = Arrays.copyOf(mEntrySizes, capacity);
+            }
+            mEntryKeys[mEntryCount] = key;
+            mEntrySources[mEntryCount] = mInputId;
+            mEntryCrcs[mEntryCount] = crc;
+            mEntrySizes[mEntryCount] = size;
+            mEntryCount++;
+            if (mEntryCount * 2 > mSlots.length) {
+                mSlots = new int[mSlots.length * 2];
+                for (int i = 0; i < mEntryCount; i++) {
+                    insertSlot(mEntryKeys[i], i);
+                }
+            } else {
+                insertSlot(key, mEntryCount - 1);
+            }
+        }
+
+        private void insertSlot(long key, int entry) {
+            int mask = mSlots.length - 1;
+            int i = slot(key, mask);
+            while (mSlots[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            mSlots[i] = entry + 1;
+        }
+    }
 
     /**
-     * A filter to filter out binary files like .class
+     * 字符串表,每个不同的字符串只保存一份并分配从0开始的序号.
+     * 可直接以另一字符串的区间查找,不需要创建子串.
      */
-    public static final class NoJavaClassZipFilter implements ZipEntryFilter {
-        @NonNull
-        private final ZipEntryFilter parentFilter;
+    static final class StringTable {
+        private String[] mStrings = new String[256];
+        private int[] mHashes = new int[256];
+        private int mCount;
+        /**
+         * 开放寻址表,保存序号+1,0表示空位.
+         */
+        private int[] mSlots = new int[512];
 
-        public NoJavaClassZipFilter(@NonNull ZipEntryFilter parentFilter) {
-            this.parentFilter = parentFilter;
+        /**
+         * @return 区间[start, end)对应的序号, 不存在时返回-1.
+         */
+        int find(@NonNull String text, int start, int end) {
+            int hash = hash(text, start, end);
+            int length = end - start;
+            int mask = mSlots.length - 1;
+            for (int i = hash & mask; ; i = (i + 1) & mask) {
+                int id = mSlots[i] - 1;
+                if (id < 0) {
+                    return -1;
+                }
+                String value = mStrings[id];
+                if (mHashes[id] == hash && value.length() == length
+                        && text.regionMatches(start, value, 0, length)) {
+                    return id;
+                }
+            }
         }
 
-
-        @Override
-        public boolean checkEntry(String archivePath) throws ZipAbortException {
-            if (parentFilter != null) {
-                return parentFilter.checkEntry(archivePath) && !archivePath.endsWith(DOT_CLASS);
+        /**
+         * 添加区间[start, end)对应的字符串,调用前需确认其不存在.
+         *
+         * @return 新分配的序号
+         */
+        int add(@NonNull String text, int start, int end) {
+            if (mCount == mStrings.length) {
+                mStrings = Arrays.copyOf(mStrings, mCount * 2);
+                mHashes = Arrays.copyOf(mHashes, mCount * 2);
+            }
+            int id = mCount++;
+            mStrings[id] = text.substring(start, end);
+            mHashes[id] = hash(text, start, end);
+            if (mCount * 2 > mSlots.length) {
+                mSlots = new int[mSlots.length * 2];
+                for (int i = 0; i < mCount; i++) {
+                    insert(i);
+                }
             } else {
-                return !archivePath.endsWith(DOT_CLASS);
+                insert(id);
             }
+            return id;
         }
-    }
 
-    public static List<Pattern> checkWithoutR() {
-        List<String> excludes = Lists.newArrayListWithExpectedSize(5);
-        // these must be regexp to match the zip entries
-        excludes.add(".*/R.class$");
-        excludes.add(".*/R\\$(.*).class$");
-//        excludes.add(packagePath + "/Manifest.class$");
-//        excludes.add(packagePath + "/Manifest\\$(.*).class$");
-        // create Pattern Objects.
-        List<Pattern> patterns = Lists.newArrayListWithCapacity(excludes.size());
-        for (String exclude : excludes) {
-            patterns.add(Pattern.compile(exclude));
-        }
-        return patterns;
+        private void insert(int id) {
+            int mask = mSlots.length - 1;
+            int i = mHashes[id] & mask;
+            while (mSlots[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            mSlots[i] = id + 1;
+        }
+
+        private static int hash(@NonNull String text, int start, int end) {
+            int h = 0;
+            for (int i = start; i < end; i++) {
+                h = 31 * h + text.charAt(i);
+            }
+            return h ^ (h >>> 16);
+        }
     }
 }
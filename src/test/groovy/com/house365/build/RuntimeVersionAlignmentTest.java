@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2015 House365. All rights reserved.
+ */
+
+package com.house365.build;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RuntimeVersionAlignmentTest {
+
+    @Test
+    public void comparesNumericParts() {
+        assertNewer("1.10", "1.9");
+        assertNewer("27.1.1", "27.1.0");
+        assertNewer("2", "1.9.9");
+        assertNewer("1.0.1", "1.0");
+        assertEquals(0, RuntimeVersionAlignment.compareVersions("1.01", "1.1"));
+        assertEquals(0, RuntimeVersionAlignment.compareVersions("1.0.0", "1.0.0"));
+    }
+
+    @Test
+    public void comparesQualifiers() {
+        assertNewer("1.0", "1.0-beta1");
+        assertNewer("1.0-beta2", "1.0-beta1");
+        assertNewer("1.0-beta1", "1.0-alpha9");
+        assertNewer("1.0-rc1", "1.0-beta1");
+        assertNewer("1.0-alpha1", "1.0-dev");
+        assertNewer("1.0-release", "1.0-final");
+        assertNewer("1.0-1", "1.0-rc1");
+        assertNewer("28.0.0-alpha1", "27.1.1");
+        assertNewer("1.0a2", "1.0a1");
+    }
+
+    private static void assertNewer(String newer, String older) {
+        assertTrue(newer + " > " + older, RuntimeVersionAlignment.compareVersions(newer, older) > 0);
+        assertTrue(older + " < " + newer, RuntimeVersionAlignment.compareVersions(older, newer) < 0);
+    }
+}
@@ -0,0 +1,402 @@
+/*
+ * Copyright (C) 2015 House365. All rights reserved.
+ */
+
+package com.house365.build.transform;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.android.build.api.transform.Status;
+import com.android.build.gradle.internal.dsl.PackagingOptions;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import com.house365.build.util.PackagingActionCache;
+import com.house365.build.util.ZipEntryFilterUtil;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 将合并结果与逐个条目经过{@link ZipEntryFilterUtil.PackagingFilter}串行复制(原JarMerger的处理方式)的结果比较.
+ */
+public class IncrementalJarMergerTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private PackagingActionCache packagingActions;
+    private File jar1;
+    private File jar2;
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        PackagingOptions packagingOptions = new PackagingOptions();
+        packagingOptions.exclude("/META-INF/LICENSE");
+        packagingOptions.exclude("/x/_hidden/**");
+        packagingOptions.pickFirst("pick/first.txt");
+        packagingActions = new PackagingActionCache(packagingOptions);
+
+        jar1 = temporaryFolder.newFile("jar1.jar");
+        Map<String, String> entries1 = new LinkedHashMap<>();
+        entries1.put("META-INF/MANIFEST.MF", "Manifest-Version: 1.0\n");
+        entries1.put("META-INF/LICENSE", "license");
+        entries1.put("a/A.class", "A1");
+        entries1.put("res/dup.txt", "same");
+        entries1.put("pick/first.txt", "1");
+        writeJar(jar1, entries1, "a/Stored.bin");
+
+        jar2 = temporaryFolder.newFile("jar2.jar");
+        Map<String, String> entries2 = new LinkedHashMap<>();
+        entries2.put("a/A.class", "A2");
+        entries2.put("res/dup.txt", "same");
+        entries2.put("pick/first.txt", "2");
+        entries2.put("b/B.class", "B");
+        entries2.put("x/_hidden/C.class", "hidden");
+        writeJar(jar2, entries2, null);
+
+        directory = temporaryFolder.newFolder("classes");
+        write(new File(directory, "c/C.class"), "C");
+        write(new File(directory, "pick/first.txt"), "3");
+        write(new File(directory, "b/B.class"), "B2");
+    }
+
+    @Test
+    public void serialMergeMatchesFilterOutput() throws IOException {
+        File output = new File(temporaryFolder.getRoot(), "serial.jar");
+        merge(output, 1, null, null);
+        assertEquals(expected(), read(output));
+    }
+
+    @Test
+    public void mergeKeepsInputOrder() throws IOException {
+        File output = new File(temporaryFolder.getRoot(), "order.jar");
+        merge(output, 1, null, null);
+        assertEquals(new ArrayList<>(expected().keySet()), new ArrayList<>(read(output).keySet()));
+    }
+
+    @Test
+    public void routesEntriesOfOneSourceToSeveralSinks() throws IOException {
+        Map<String, String> entries = new LinkedHashMap<>();
+        entries.put("a/R.class", "R");
+        entries.put("a/R$id.class", "Rid");
+        entries.put("a/A.class", "A");
+        entries.put("drop/D.class", "D");
+        File jar = temporaryFolder.newFile("routed.jar");
+        writeJar(jar, entries, null);
+
+        File rJar = new File(temporaryFolder.getRoot(), "r.jar");
+        File classesJar = new File(temporaryFolder.getRoot(), "routed-classes.jar");
+        IncrementalJarMerger merger = new IncrementalJarMerger();
+        IncrementalJarMerger.Sink rSink = merger.addSink(rJar,
+                new ZipEntryFilterUtil.PackagingFilter(packagingActions, null), null, null);
+        IncrementalJarMerger.Sink classSink = merger.addSink(classesJar,
+                new ZipEntryFilterUtil.PackagingFilter(packagingActions, null), null, null);
+        try {
+            merger.addJar(jar, null, archivePath -> archivePath.startsWith("drop/")
+                    ? null
+                    : ZipEntryFilterUtil.isRClass(archivePath) ? rSink : classSink);
+            merger.commit();
+        } finally {
+            merger.close();
+        }
+        assertEquals(Arrays.asList("a/R.class", "a/R$id.class"), new ArrayList<>(read(rJar).keySet()));
+        assertEquals(Collections.singletonList("a/A.class"), new ArrayList<>(read(classesJar).keySet()));
+    }
+
+    @Test
+    public void transformsEntriesWhileMerging() throws IOException {
+        File output = new File(temporaryFolder.getRoot(), "transformed.jar");
+        File processed = temporaryFolder.newFile("processed.jar");
+        Map<String, String> processedEntries = new LinkedHashMap<>();
+        processedEntries.put("p/P.class", "P");
+        writeJar(processed, processedEntries, null);
+
+        IncrementalJarMerger merger = new IncrementalJarMerger(2);
+        IncrementalJarMerger.Sink sink = merger.addSink(output,
+                new ZipEntryFilterUtil.PackagingFilter(packagingActions, null), null,
+                (archivePath, data) -> archivePath.endsWith(".class")
+                        ? (new String(data, StandardCharsets.UTF_8) + "!").getBytes(StandardCharsets.UTF_8)
+                        : data);
+        try {
+            merger.addJar(jar1, null, archivePath -> sink);
+            merger.addDirectory(directory, null, archivePath -> sink);
+            merger.addProcessedJar(processed, null, archivePath -> sink);
+            merger.commit();
+        } finally {
+            merger.close();
+        }
+        Map<String, String> entries = read(output);
+        assertEquals("A1!", entries.get("a/A.class"));
+        assertEquals("C!", entries.get("c/C.class"));
+        assertEquals("same", entries.get("res/dup.txt"));
+        assertEquals("stored", entries.get("a/Stored.bin"));
+        // 已处理过的jar不再经过transformer.
+        assertEquals("P", entries.get("p/P.class"));
+    }
+
+    @Test
+    public void parallelMergeMatchesFilterOutput() throws IOException {
+        File output = new File(temporaryFolder.getRoot(), "parallel.jar");
+        merge(output, 4, null, null);
+        assertEquals(expected(), read(output));
+    }
+
+    @Test
+    public void parallelMergeOfManySourcesIsIdenticalToSerialMerge() throws IOException {
+        File[] jars = new File[24];
+        for (int i = 0; i < jars.length; i++) {
+            Map<String, String> entries = new LinkedHashMap<>();
+            entries.put("u/U" + i + ".class", "U" + i);
+            entries.put("pick/first.txt", String.valueOf(i));
+            entries.put("dup/Dup.class", String.valueOf(i));
+            jars[i] = temporaryFolder.newFile("many" + i + ".jar");
+            writeJar(jars[i], entries, null);
+        }
+        File serial = new File(temporaryFolder.getRoot(), "many-serial.jar");
+        File parallel = new File(temporaryFolder.getRoot(), "many-parallel.jar");
+        merge(serial, 1, null, null, jars);
+        merge(parallel, 4, null, null, jars);
+        assertArrayEquals(Files.toByteArray(serial), Files.toByteArray(parallel));
+        assertEquals("0", read(parallel).get("pick/first.txt"));
+        assertEquals(new ArrayList<>(expected(jars).keySet()), new ArrayList<>(read(parallel).keySet()));
+    }
+
+    @Test
+    public void copiesCompressedDataOfUnchangedEntries() throws IOException {
+        File output = new File(temporaryFolder.getRoot(), "raw.jar");
+        merge(output, 2, null, null);
+        try (org.apache.commons.compress.archivers.zip.ZipFile in =
+                     new org.apache.commons.compress.archivers.zip.ZipFile(jar1);
+             org.apache.commons.compress.archivers.zip.ZipFile out =
+                     new org.apache.commons.compress.archivers.zip.ZipFile(output)) {
+            for (String path : new String[]{"a/A.class", "res/dup.txt", "a/Stored.bin"}) {
+                ZipArchiveEntry inEntry = in.getEntry(path);
+                ZipArchiveEntry outEntry = out.getEntry(path);
+                assertEquals(path, inEntry.getMethod(), outEntry.getMethod());
+                assertEquals(path, inEntry.getCrc(), outEntry.getCrc());
+                assertArrayEquals(rawData(in, inEntry), rawData(out, outEntry));
+            }
+            assertEquals(ZipEntry.STORED, out.getEntry("a/Stored.bin").getMethod());
+        }
+    }
+
+    @Test
+    public void expectedOutputKeepsFirstDuplicateAndPickFirst() throws IOException {
+        Map<String, String> expected = expected();
+        assertEquals("A1", expected.get("a/A.class"));
+        assertEquals("1", expected.get("pick/first.txt"));
+        assertEquals("B", expected.get("b/B.class"));
+        assertEquals("same", expected.get("res/dup.txt"));
+        assertEquals("C", expected.get("c/C.class"));
+        assertFalse(expected.containsKey("META-INF/MANIFEST.MF"));
+        assertFalse(expected.containsKey("META-INF/LICENSE"));
+        assertFalse(expected.containsKey("x/_hidden/C.class"));
+    }
+
+    @Test
+    public void incrementalMergeMatchesFullMerge() throws IOException {
+        File output = new File(temporaryFolder.getRoot(), "incremental.jar");
+        ShadeMergeState.OutputState state = merge(output, 2, null, null);
+
+        Map<String, String> entries2 = new LinkedHashMap<>();
+        entries2.put("a/A.class", "A3");
+        entries2.put("pick/first.txt", "4");
+        entries2.put("d/D.class", "D");
+        writeJar(jar2, entries2, null);
+        assertTrue(jar2.setLastModified(jar2.lastModified() + 2000));
+
+        Map<File, Status> changed = new LinkedHashMap<>();
+        changed.put(jar1, Status.NOTCHANGED);
+        changed.put(jar2, Status.CHANGED);
+        merge(output, 2, state, changed);
+        assertEquals(expected(), read(output));
+        assertEquals("D", read(output).get("d/D.class"));
+        assertEquals("A1", read(output).get("a/A.class"));
+    }
+
+    @Test
+    public void incrementalMergeDropsEntriesOfRemovedSource() throws IOException {
+        File output = new File(temporaryFolder.getRoot(), "removed.jar");
+        ShadeMergeState.OutputState state = merge(output, 2, null, null);
+        assertEquals("B", read(output).get("b/B.class"));
+
+        // jar2被移除后,其提供的条目由后续输入源提供或不再出现.
+        Map<File, Status> changed = new LinkedHashMap<>();
+        changed.put(jar1, Status.NOTCHANGED);
+        merge(output, 2, state, changed, jar1);
+        Map<String, String> entries = read(output);
+        assertEquals(expected(jar1), entries);
+        assertEquals("B2", entries.get("b/B.class"));
+        assertFalse(entries.containsKey("x/_hidden/C.class"));
+    }
+
+    @Test
+    public void abortedMergeKeepsPreviousOutput() throws IOException {
+        File output = new File(temporaryFolder.getRoot(), "aborted.jar");
+        merge(output, 2, null, null);
+        byte[] previous = Files.toByteArray(output);
+
+        IncrementalJarMerger merger = new IncrementalJarMerger(2);
+        IncrementalJarMerger.Sink sink = merger.addSink(output,
+                new ZipEntryFilterUtil.PackagingFilter(packagingActions, null), null, null);
+        try {
+            merger.addJar(jar1, null, archivePath -> sink);
+            throw new IllegalStateException("caller failed before commit");
+        } catch (IllegalStateException expected) {
+            // expected
+        } finally {
+            merger.close();
+        }
+        assertArrayEquals(previous, Files.toByteArray(output));
+        assertFalse(new File(output.getPath() + ".tmp").exists());
+    }
+
+    @Test
+    public void failedMergeKeepsPreviousOutput() throws IOException {
+        File output = new File(temporaryFolder.getRoot(), "failed.jar");
+        merge(output, 2, null, null);
+        byte[] previous = Files.toByteArray(output);
+
+        write(jar2, "not a zip file");
+        try {
+            merge(output, 2, null, null);
+            fail();
+        } catch (IOException expected) {
+            // expected
+        }
+        assertArrayEquals(previous, Files.toByteArray(output));
+        assertFalse(new File(output.getPath() + ".tmp").exists());
+    }
+
+    private ShadeMergeState.OutputState merge(File output, int parallelism,
+                                              ShadeMergeState.OutputState previous,
+                                              Map<File, Status> statuses) throws IOException {
+        return merge(output, parallelism, previous, statuses, jar1, jar2);
+    }
+
+    private ShadeMergeState.OutputState merge(File output, int parallelism,
+                                              ShadeMergeState.OutputState previous,
+                                              Map<File, Status> statuses,
+                                              File... jars) throws IOException {
+        IncrementalJarMerger merger = new IncrementalJarMerger(parallelism);
+        IncrementalJarMerger.Sink sink = merger.addSink(output,
+                new ZipEntryFilterUtil.PackagingFilter(packagingActions, null), previous, null);
+        try {
+            for (File jar : jars) {
+                merger.addJar(jar, statuses != null ? statuses.get(jar) : null, archivePath -> sink);
+            }
+            merger.addDirectory(directory, previous != null ? new LinkedHashMap<>() : null, archivePath -> sink);
+            merger.commit();
+        } finally {
+            merger.close();
+        }
+        return sink.getState();
+    }
+
+    /**
+     * 原有的合并方式:按输入顺序逐个条目调用过滤器,通过的条目直接复制.
+     */
+    private Map<String, String> expected() throws IOException {
+        return expected(jar1, jar2);
+    }
+
+    private Map<String, String> expected(File... jars) throws IOException {
+        ZipEntryFilterUtil.PackagingFilter filter = new ZipEntryFilterUtil.PackagingFilter(packagingActions, null);
+        Map<String, String> result = new LinkedHashMap<>();
+        for (File jar : jars) {
+            filter.reset(jar);
+            for (Map.Entry<String, String> entry : read(jar).entrySet()) {
+                if (check(filter, entry.getKey())) {
+                    result.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        filter.reset(directory);
+        for (String path : new String[]{"b/B.class", "c/C.class", "pick/first.txt"}) {
+            if (check(filter, path)) {
+                result.put(path, Files.asCharSource(new File(directory, path), StandardCharsets.UTF_8).read());
+            }
+        }
+        return result;
+    }
+
+    private static boolean check(ZipEntryFilterUtil.PackagingFilter filter, String path) throws IOException {
+        try {
+            return filter.checkEntry(path);
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static byte[] rawData(org.apache.commons.compress.archivers.zip.ZipFile zipFile,
+                                  ZipArchiveEntry entry) throws IOException {
+        try (InputStream in = zipFile.getRawInputStream(entry)) {
+            return ByteStreams.toByteArray(in);
+        }
+    }
+
+    private static Map<String, String> read(File jar) throws IOException {
+        Map<String, String> result = new LinkedHashMap<>();
+        try (ZipFile zipFile = new ZipFile(jar)) {
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                try (InputStream in = zipFile.getInputStream(entry)) {
+                    result.put(entry.getName(), new String(ByteStreams.toByteArray(in), StandardCharsets.UTF_8));
+                }
+            }
+        }
+        return result;
+    }
+
+    private static void writeJar(File jar, Map<String, String> entries, String stored) throws IOException {
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar))) {
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                out.putNextEntry(new ZipEntry(entry.getKey()));
+                out.write(entry.getValue().getBytes(StandardCharsets.UTF_8));
+                out.closeEntry();
+            }
+            if (stored != null) {
+                byte[] data = "stored".getBytes(StandardCharsets.UTF_8);
+                CRC32 crc = new CRC32();
+                crc.update(data);
+                ZipEntry entry = new ZipEntry(stored);
+                entry.setMethod(ZipEntry.STORED);
+                entry.setSize(data.length);
+                entry.setCrc(crc.getValue());
+                out.putNextEntry(entry);
+                out.write(data);
+                out.closeEntry();
+            }
+        }
+    }
+
+    private static void write(File file, String content) throws IOException {
+        file.getParentFile().mkdirs();
+        Files.asCharSink(file, StandardCharsets.UTF_8).write(content);
+    }
+}
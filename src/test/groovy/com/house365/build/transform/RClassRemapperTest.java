@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2015 House365. All rights reserved.
+ */
+
+package com.house365.build.transform;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class RClassRemapperTest {
+
+    private final RClassRemapper remapper = new RClassRemapper("com.app", Arrays.asList("com.lib", "com.other"));
+
+    @Test
+    public void relocatesFieldReference() throws Exception {
+        byte[] data = generate(mv -> mv.visitFieldInsn(Opcodes.GETSTATIC, "com/lib/R$id", "title", "I"));
+        List<String> references = references(remapper.relocate("com/lib/Foo.class", data));
+        assertTrue(references.contains("field com/app/R$id.title I"));
+        assertNoReference(references, "com/lib/R");
+    }
+
+    @Test
+    public void relocatesMethodReference() throws Exception {
+        byte[] data = generate(mv -> mv.visitMethodInsn(Opcodes.INVOKESTATIC, "com/lib/R", "values",
+                "(Lcom/lib/R$id;)[Lcom/lib/R$string;", false));
+        List<String> references = references(remapper.relocate("com/lib/Foo.class", data));
+        assertTrue(references.contains("method com/app/R.values (Lcom/app/R$id;)[Lcom/app/R$string;"));
+        assertNoReference(references, "com/lib/R");
+    }
+
+    @Test
+    public void relocatesTypeConstant() throws Exception {
+        byte[] data = generate(mv -> mv.visitLdcInsn(Type.getObjectType("com/other/R$layout")));
+        List<String> references = references(remapper.relocate("com/lib/Foo.class", data));
+        assertTrue(references.contains("ldc Lcom/app/R$layout;"));
+        assertNoReference(references, "com/other/R");
+    }
+
+    @Test
+    public void relocatesDottedStringConstant() throws Exception {
+        byte[] data = generate(mv -> mv.visitLdcInsn("com.lib.R$string"));
+        List<String> references = references(remapper.relocate("com/lib/Foo.class", data));
+        assertTrue(references.contains("ldc com.app.R$string"));
+        assertFalse(references.contains("ldc com.lib.R$string"));
+    }
+
+    @Test
+    public void relocatesFieldType() throws Exception {
+        ClassWriter writer = new ClassWriter(0);
+        writer.visit(Opcodes.V1_7, Opcodes.ACC_PUBLIC, "com/lib/Foo", null, "java/lang/Object", null);
+        writer.visitField(Opcodes.ACC_PUBLIC, "ids", "Lcom/lib/R$id;", null, null).visitEnd();
+        writer.visitEnd();
+        List<String> references = references(remapper.relocate("com/lib/Foo.class", writer.toByteArray()));
+        assertTrue(references.contains("declare ids Lcom/app/R$id;"));
+    }
+
+    @Test
+    public void keepsSimilarNames() throws Exception {
+        byte[] data = generate(mv -> {
+            mv.visitFieldInsn(Opcodes.GETSTATIC, "com/lib/Rx", "a", "I");
+            mv.visitFieldInsn(Opcodes.GETSTATIC, "com/lib/sub/R", "b", "I");
+            mv.visitFieldInsn(Opcodes.GETSTATIC, "com/lib/R$id", "c", "I");
+        });
+        List<String> references = references(remapper.relocate("com/lib/Foo.class", data));
+        assertTrue(references.contains("field com/lib/Rx.a I"));
+        assertTrue(references.contains("field com/lib/sub/R.b I"));
+        assertTrue(references.contains("field com/app/R$id.c I"));
+    }
+
+    @Test
+    public void returnsClassWithoutReferenceUnchanged() throws Exception {
+        byte[] data = generate(mv -> {
+            mv.visitFieldInsn(Opcodes.GETSTATIC, "com/lib/Config", "DEBUG", "Z");
+            mv.visitLdcInsn("com.lib.Config");
+        });
+        assertSame(data, remapper.relocate("com/lib/Foo.class", data));
+    }
+
+    @Test
+    public void returnsResourceUnchanged() throws Exception {
+        byte[] data = "com.lib.R$string".getBytes("UTF-8");
+        assertSame(data, remapper.relocate("META-INF/services/com.lib.Service", data));
+    }
+
+    @Test
+    public void relocatesUsingOnlyConfiguredPackages() throws Exception {
+        byte[] data = generate(mv -> mv.visitFieldInsn(Opcodes.GETSTATIC, "com/lib/R$id", "title", "I"));
+        RClassRemapper empty = new RClassRemapper("com.app", new ArrayList<>());
+        assertSame(data, empty.relocate("com/lib/Foo.class", data));
+        byte[] relocated = remapper.relocate("com/lib/Foo.class", data);
+        assertNotSame(data, relocated);
+        assertArrayEquals(relocated, remapper.relocate("com/lib/Foo.class", data));
+    }
+
+    @Test
+    public void keyDependsOnRules() {
+        assertEquals(remapper.getKey(),
+                new RClassRemapper("com.app", Arrays.asList("com.other", "com.lib")).getKey());
+        assertFalse(remapper.getKey().equals(
+                new RClassRemapper("com.app2", Arrays.asList("com.lib", "com.other")).getKey()));
+    }
+
+    private interface Body {
+        void write(MethodVisitor mv);
+    }
+
+    private static byte[] generate(Body body) {
+        ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        writer.visit(Opcodes.V1_7, Opcodes.ACC_PUBLIC, "com/lib/Foo", null, "java/lang/Object", null);
+        MethodVisitor mv = writer.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "run", "()V", null, null);
+        mv.visitCode();
+        body.write(mv);
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        writer.visitEnd();
+        return writer.toByteArray();
+    }
+
+    /**
+     * 以文本形式列出class中的类型引用,便于断言.
+     */
+    private static List<String> references(byte[] data) {
+        List<String> references = new ArrayList<>();
+        new ClassReader(data).accept(new ClassVisitor(Opcodes.ASM5) {
+            @Override
+            public FieldVisitor visitField(int access, String name, String desc, String signature, Object value) {
+                references.add("declare " + name + " " + desc);
+                return null;
+            }
+
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String desc, String signature,
+                                             String[] exceptions) {
+                return new MethodVisitor(Opcodes.ASM5) {
+                    @Override
+                    public void visitFieldInsn(int opcode, String owner, String name, String desc) {
+                        references.add("field " + owner + "." + name + " " + desc);
+                    }
+
+                    @Override
+                    public void visitMethodInsn(int opcode, String owner, String name, String desc,
+                                                boolean itf) {
+                        references.add("method " + owner + "." + name + " " + desc);
+                    }
+
+                    @Override
+                    public void visitLdcInsn(Object cst) {
+                        references.add("ldc " + cst);
+                    }
+                };
+            }
+        }, 0);
+        return references;
+    }
+
+    private static void assertNoReference(List<String> references, String internalName) {
+        for (String reference : references) {
+            assertFalse(reference, reference.contains(internalName + ".")
+                    || reference.contains(internalName + "$")
+                    || reference.contains("L" + internalName + ";"));
+        }
+    }
+}
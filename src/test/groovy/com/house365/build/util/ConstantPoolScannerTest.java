@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2015 House365. All rights reserved.
+ */
+
+package com.house365.build.util;
+
+import java.util.Collections;
+
+import org.junit.Test;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ConstantPoolScannerTest {
+
+    private final ConstantPoolScanner scanner = new ConstantPoolScanner(Collections.singletonList("com.lib.R"));
+
+    @Test
+    public void findsInternalName() {
+        assertTrue(scanner.references(generate("com/lib/R$id", null)));
+    }
+
+    @Test
+    public void findsDescriptor() {
+        assertTrue(scanner.references(generate("com/lib/Other", "(Lcom/lib/R;)V")));
+    }
+
+    @Test
+    public void findsDottedString() {
+        ClassWriter writer = newClass();
+        MethodVisitor mv = writer.visitMethod(Opcodes.ACC_STATIC, "run", "()V", null, null);
+        mv.visitCode();
+        mv.visitLdcInsn("com.lib.R$string");
+        mv.visitInsn(Opcodes.POP);
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(1, 0);
+        mv.visitEnd();
+        assertTrue(scanner.references(writer.toByteArray()));
+    }
+
+    @Test
+    public void ignoresUnrelatedClass() {
+        assertFalse(scanner.references(generate("com/lib/Other", "()V")));
+    }
+
+    @Test
+    public void treatsUnknownFormatAsReference() {
+        assertTrue(scanner.references(new byte[]{1, 2, 3}));
+    }
+
+    private static ClassWriter newClass() {
+        ClassWriter writer = new ClassWriter(0);
+        writer.visit(Opcodes.V1_7, Opcodes.ACC_PUBLIC, "com/lib/Foo", null, "java/lang/Object", null);
+        return writer;
+    }
+
+    private static byte[] generate(String owner, String desc) {
+        ClassWriter writer = newClass();
+        MethodVisitor mv = writer.visitMethod(Opcodes.ACC_STATIC, "run", "()V", null, null);
+        mv.visitCode();
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC, owner, "call", desc != null ? desc : "()V", false);
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(1, 0);
+        mv.visitEnd();
+        writer.visitEnd();
+        return writer.toByteArray();
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2015 House365. All rights reserved.
+ */
+
+package com.house365.build.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class InputFileCacheTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void unchangedJarHitsCache() throws IOException {
+        File jar = temporaryFolder.newFile("a.jar");
+        writeJar(jar, "a");
+        InputFileCache cache = new InputFileCache(16);
+        String hash = cache.getContentHash(jar);
+        assertEquals(Files.asByteSource(jar).hash(Hashing.sha1()).toString(), hash);
+        assertEquals(hash, cache.getContentHash(jar));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void jarRewrittenInPlaceIsHashedAgain() throws IOException {
+        File jar = temporaryFolder.newFile("b.jar");
+        writeJar(jar, "a");
+        long lastModified = jar.lastModified();
+        long length = jar.length();
+        InputFileCache cache = new InputFileCache(16);
+        String hash = cache.getContentHash(jar);
+
+        // 大小及修改时间都与之前相同,只有条目内容不同.
+        writeJar(jar, "b");
+        jar.setLastModified(lastModified);
+        assertEquals(length, jar.length());
+        assertEquals(lastModified, jar.lastModified());
+
+        String rewritten = cache.getContentHash(jar);
+        assertNotEquals(hash, rewritten);
+        assertEquals(Files.asByteSource(jar).hash(Hashing.sha1()).toString(), rewritten);
+        assertEquals(0, cache.getHits());
+    }
+
+    private static void writeJar(File jar, String content) throws IOException {
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar))) {
+            ZipEntry entry = new ZipEntry("a/A.class");
+            entry.setTime(0L);
+            out.putNextEntry(entry);
+            out.write(content.getBytes(StandardCharsets.UTF_8));
+            out.closeEntry();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2015 House365. All rights reserved.
+ */
+
+package com.house365.build.util;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.android.build.gradle.internal.dsl.PackagingOptions;
+import com.android.build.gradle.internal.packaging.PackagingFileAction;
+import com.android.build.gradle.internal.packaging.ParsedPackagingOptions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PackagingActionCacheTest {
+
+    private static final List<String> PATHS = Arrays.asList(
+            "com/lib/Foo.class",
+            "com/lib/_Foo.class",
+            "com/lib/.Foo.class",
+            "com/lib/Foo.class~",
+            "com/_lib/Foo.class",
+            "com/.svn/Foo.class",
+            ".svn/Foo.class",
+            "CVS/x.txt",
+            "a/CVS/x.txt",
+            "META-INF/LICENSE",
+            "META-INF/LICENSE.txt",
+            "META-INF/CERT.RSA",
+            "META-INF/a/CERT.RSA",
+            "META-INF/maven/a/pom.xml",
+            "META-INF/services/a.b.Service",
+            "LICENSE",
+            "a/LICENSE",
+            "NOTICE.txt",
+            "thumbs.db",
+            "res/thumbs.db",
+            "lib/x86/libfoo.so",
+            "lib/armeabi/libfoo.so",
+            "assets/config.json",
+            "config.json",
+            "a/b/c/d.properties",
+            "com/lib/R$id.class");
+
+    @Test
+    public void matchesParsedPackagingOptionsWithDefaults() {
+        assertSameActions(new PackagingOptions());
+    }
+
+    @Test
+    public void matchesParsedPackagingOptionsWithCustomRules() {
+        PackagingOptions packagingOptions = new PackagingOptions();
+        packagingOptions.exclude("lib/x86/*.so");
+        packagingOptions.exclude("**/*.properties");
+        packagingOptions.exclude("com/lib/R$*.class");
+        packagingOptions.exclude("config.json");
+        packagingOptions.pickFirst("**/config.json");
+        packagingOptions.pickFirst("lib/*/lib?oo.so");
+        packagingOptions.merge("META-INF/{a,b}/**");
+        assertSameActions(packagingOptions);
+    }
+
+    @Test
+    public void hintRejectsOnlyImpossiblePaths() {
+        PackagingActionCache.GlobHint hint = PackagingActionCache.GlobHint.parse("/**/_*/**");
+        assertFalse(hint.mayMatch("com/lib/Foo.class", "com/lib/".length()));
+        assertTrue(hint.mayMatch("com/_lib/Foo.class", "com/_lib/".length()));
+
+        hint = PackagingActionCache.GlobHint.parse("/META-INF/*.RSA");
+        assertFalse(hint.mayMatch("com/lib/Foo.class", "com/lib/".length()));
+        assertTrue(hint.mayMatch("META-INF/CERT.RSA", "META-INF/".length()));
+    }
+
+    private static void assertSameActions(PackagingOptions packagingOptions) {
+        PackagingActionCache cache = new PackagingActionCache(packagingOptions);
+        ParsedPackagingOptions parsed = new ParsedPackagingOptions(packagingOptions);
+        for (String path : PATHS) {
+            PackagingFileAction expected = parsed.getAction(path);
+            assertEquals(path, expected, cache.getAction(path));
+            // 第二次从缓存中获取.
+            assertEquals(path, expected, cache.getAction(path));
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2015 House365. All rights reserved.
+ */
+
+package com.house365.build.util;
+
+import java.io.File;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ZipEntryFilterUtilTest {
+
+    @Test
+    public void duplicateFilterKeepsFirstEntry() throws Exception {
+        ZipEntryFilterUtil.DuplicateZipFilter filter = new ZipEntryFilterUtil.DuplicateZipFilter();
+        filter.reset(new File("a.jar"));
+        assertTrue(filter.checkEntry("a/b/R.class", 1, 1));
+        assertTrue(filter.checkEntry("a/c/R.class", 2, 1));
+        assertTrue(filter.checkEntry("R.class", 3, 1));
+        assertTrue(filter.checkEntry("a/b/", 4, 0));
+        filter.reset(new File("b.jar"));
+        assertFalse(filter.checkEntry("a/b/R.class", 1, 1));
+        assertFalse(filter.checkEntry("a/c/R.class", 5, 1));
+        assertFalse(filter.checkEntry("R.class", 3, 1));
+        assertTrue(filter.checkEntry("a/b/R$id.class", 6, 1));
+        assertTrue(filter.checkEntry("a/R.class", 7, 1));
+    }
+
+    @Test
+    public void duplicateFilterGrows() throws Exception {
+        ZipEntryFilterUtil.DuplicateZipFilter filter = new ZipEntryFilterUtil.DuplicateZipFilter();
+        int count = 20000;
+        for (int i = 0; i < count; i++) {
+            filter.reset(new File("lib" + (i % 7) + ".jar"));
+            assertTrue(filter.checkEntry("p" + (i % 97) + "/C" + i + ".class", i, i));
+        }
+        for (int i = 0; i < count; i++) {
+            assertFalse(filter.checkEntry("p" + (i % 97) + "/C" + i + ".class", i, i));
+        }
+        assertTrue(filter.checkEntry("p0/C" + count + ".class", 0, 0));
+    }
+
+    @Test
+    public void stringTableFindsRegions() {
+        ZipEntryFilterUtil.StringTable table = new ZipEntryFilterUtil.StringTable();
+        String path = "com/lib/R.class";
+        assertEquals(-1, table.find(path, 0, 8));
+        int directory = table.add(path, 0, 8);
+        int name = table.add(path, 8, path.length());
+        assertEquals(directory, table.find("com/lib/Other.class", 0, 8));
+        assertEquals(name, table.find("x/R.class", 2, 9));
+        assertEquals(-1, table.find("com/li/R.class", 0, 7));
+    }
+}